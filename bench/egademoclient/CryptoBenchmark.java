@@ -0,0 +1,111 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egademoclient;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import utils.ResumableMD5;
+
+/**
+ *
+ * @author asenf
+ *
+ * Checksum and cipher throughput of the download/decrypt path, for one
+ * buffer of {bufferSize} bytes per operation (MB/s = ops/s * bufferSize):
+ * MD5 over heap and direct buffers, the resumable MD5 used while writing,
+ * and AES-128/CTR in place (as in segmented downloads and chunked decryption).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CryptoBenchmark {
+
+    @Param({"65536", "1048576", "4194304"})
+    public int bufferSize;
+
+    private byte[] heap;
+    private ByteBuffer direct;
+    private MessageDigest md;
+    private ResumableMD5 resumable;
+    private Cipher cipher;
+
+    @Setup(Level.Trial)
+    public void setup() throws GeneralSecurityException {
+        Random rnd = new Random(42);
+        this.heap = new byte[this.bufferSize];
+        rnd.nextBytes(this.heap);
+        this.direct = ByteBuffer.allocateDirect(this.bufferSize);
+        this.direct.put(this.heap);
+        this.md = MessageDigest.getInstance("MD5");
+        this.resumable = new ResumableMD5();
+        byte[] key = new byte[16], iv = new byte[16];
+        rnd.nextBytes(key);
+        rnd.nextBytes(iv);
+        this.cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        this.cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv)); // CTR: the key stream just continues
+    }
+
+    @Benchmark
+    public byte[] md5Heap() {
+        this.md.update(this.heap);
+        return this.md.digest();
+    }
+
+    @Benchmark
+    public byte[] md5Direct() {
+        this.direct.clear();
+        this.md.update(this.direct);
+        return this.md.digest();
+    }
+
+    @Benchmark
+    public long resumableMd5() {
+        this.resumable.update(this.heap, 0, this.heap.length);
+        return this.resumable.getCount();
+    }
+
+    @Benchmark
+    public int ctrHeap() throws GeneralSecurityException {
+        return this.cipher.update(this.heap, 0, this.heap.length, this.heap, 0);
+    }
+
+    @Benchmark
+    public int ctrDirect() throws GeneralSecurityException {
+        this.direct.clear();
+        return this.cipher.update(this.direct.duplicate(), this.direct.duplicate());
+    }
+}
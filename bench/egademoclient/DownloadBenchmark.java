@@ -0,0 +1,121 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egademoclient;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ *
+ * @author asenf
+ *
+ * Per-file code paths of a request download, for {tickets} tickets per
+ * operation: the local file name of each ticket (EgaDemoClient_Download),
+ * filtering tickets into the store (pending and journaled tickets are
+ * skipped, as in download()), and the scheduler's bookkeeping of a run
+ * (size order, state changes, counts).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DownloadBenchmark {
+
+    @Param({"1000", "100000"})
+    public int tickets;
+
+    private String[] ticket, name, size, org;
+    private File dir;
+    private EgaDownloadJournal journal;
+    private EgaTicketStore store;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        Random rnd = new Random(42);
+        this.ticket = new String[this.tickets];
+        this.name = new String[this.tickets];
+        this.size = new String[this.tickets];
+        this.org = new String[this.tickets];
+        for (int i=0; i<this.tickets; i++) {
+            this.ticket[i] = i%20==0?null:String.format("%08x-%04x-%04x-%012x", rnd.nextInt(), i & 0xffff, rnd.nextInt(0x10000), (long) i);
+            this.name[i] = "EGAR" + String.format("%011d", i) + "/sample_" + i + (i%2==0?".bam.gpg":".vcf.cip");
+            this.size[i] = String.valueOf(rnd.nextInt(Integer.MAX_VALUE));
+            this.org[i] = i%3==0?"CRG":"";
+        }
+
+        // Every 10th ticket was downloaded in an earlier run
+        this.dir = Files.createTempDirectory("egabench").toFile();
+        this.journal = new EgaDownloadJournal(this.dir.getPath(), "bench");
+        for (int i=0; i<this.tickets; i+=10)
+            if (this.ticket[i] != null)
+                this.journal.append(EgaDownloadJournal.VERIFIED, this.ticket[i], 1);
+
+        this.store = new EgaTicketStore(this.tickets);
+        for (int i=0; i<this.tickets; i++)
+            if (this.ticket[i] != null)
+                this.store.add(this.ticket[i], this.name[i], this.size[i]);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.journal.close();
+        this.journal.getFile().delete();
+        this.dir.delete();
+    }
+
+    @Benchmark
+    public void targetName(Blackhole bh) {
+        for (int i=0; i<this.tickets; i++)
+            bh.consume(EgaDemoClient_Download.targetName(this.name[i], this.org[i]));
+    }
+
+    @Benchmark
+    public EgaTicketStore filterTickets() {
+        EgaTicketStore store_ = new EgaTicketStore(this.tickets);
+        for (int i=0; i<this.tickets; i++)
+            EgaDemoClient.addTicket(store_, this.ticket[i], this.name[i], this.size[i], this.journal);
+        return store_;
+    }
+
+    @Benchmark
+    public int bookkeeping() {
+        int[] order = this.store.bySizeDescending();
+        for (int i : order) {
+            this.store.setState(i, EgaTicketStore.ACTIVE);
+            this.store.setState(i, (i & 63)==0?EgaTicketStore.FAILED:EgaTicketStore.DONE);
+        }
+        return this.store.count(EgaTicketStore.DONE) + this.store.count(EgaTicketStore.FAILED);
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package utils;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * @author asenf
+ *
+ * Version.compareTo, as used for the client's update check: equal, shorter
+ * and longer versions, and multi-digit parts.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VersionBenchmark {
+
+    private Version[] a, b;
+
+    @Setup
+    public void setup() {
+        String[][] pairs = {{"2.2.2", "2.2.2"}, {"2.2", "2.2.0"}, {"1.0.9", "1.0.10"}, {"10.4.1.7", "10.4.2"}};
+        this.a = new Version[pairs.length];
+        this.b = new Version[pairs.length];
+        for (int i=0; i<pairs.length; i++) {
+            this.a[i] = new Version(pairs[i][0]);
+            this.b[i] = new Version(pairs[i][1]);
+        }
+    }
+
+    @Benchmark
+    public int compareTo() {
+        int sum = 0;
+        for (int i=0; i<this.a.length; i++)
+            sum += this.a[i].compareTo(this.b[i]);
+        return sum;
+    }
+}
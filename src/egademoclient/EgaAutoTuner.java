@@ -0,0 +1,340 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egademoclient;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Random;
+import uk.ac.embl.ebi.ega.egadbapiwrapper.EgaDBAPIWrapper;
+
+/**
+ *
+ * @author asenf
+ *
+ * Finds good download settings by measurement instead of a fixed matrix.
+ * A configuration is a transfer mode - ranged (the ticket URL, as segmented
+ * downloads use it), or the API over HttpURLConnection ('alt'), Netty, or
+ * UDT - plus a stream count and, for ranged transfers, the network read
+ * size. Each trial downloads fresh teststream tickets to null.
+ *
+ * Every configuration is measured until its 95% confidence interval is
+ * within CONVERGED of the mean (at least MIN_TRIALS, at most MAX_TRIALS
+ * times). The search then:
+ *   1. tries each mode once at the starting stream count, and measures the
+ *      two fastest until they converge,
+ *   2. doubles (or halves) the streams of the best mode while that is
+ *      significantly better, then tries the midpoints on either side once,
+ *   3. tries other read sizes, for ranged transfers,
+ *   4. re-checks the runner-up mode at the final stream count, if it was
+ *      not significantly worse in step 1.
+ * "Significantly better" means the confidence intervals don't overlap; in a
+ * tie the cheaper setting (fewer streams) wins. The search stops there -
+ * nothing nearby is better - or when the transfer budget is spent. Without a
+ * budget, it is sized for the whole search (see budget()).
+ */
+public class EgaAutoTuner {
+
+    public static final String RANGED = "ranged";
+    public static final String HTTP = "http";
+    public static final String NETTY = "netty";
+    public static final String UDT = "udt";
+    private static final String[] MODES = {RANGED, HTTP, NETTY, UDT};
+
+    private static final int[] READ_SIZES = {16 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024};
+    private static final int MAX_TUNED_STREAMS = 64;
+    private static final int MIN_TRIALS = 2, MAX_TRIALS = 4;
+    private static final double CONVERGED = 0.10; // CI half-width / mean
+
+    // Student's t, 95% two-sided, for 1..10 degrees of freedom
+    private static final double[] T95 = {12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228};
+
+    // Fresh teststream tickets for one trial, and their removal afterwards
+    public interface Tickets {
+        public EgaTicketStore request(int count, long size, String label);
+        public void delete(String label);
+    }
+
+    public static final class Config {
+        public final String mode;
+        public final int streams, readSize;
+        private final ArrayList<Double> rates = new ArrayList<>(); // MB/s
+        private boolean failed = false;
+
+        Config(String mode, int streams, int readSize) {
+            this.mode = mode;
+            this.streams = streams;
+            this.readSize = readSize;
+        }
+
+        public int trials() {
+            return this.rates.size();
+        }
+
+        public double mean() {
+            double sum = 0;
+            for (double r : this.rates) sum += r;
+            return this.rates.isEmpty()?0:sum / this.rates.size();
+        }
+
+        // Half-width of the 95% confidence interval of the mean
+        public double halfWidth() {
+            int n = this.rates.size();
+            if (n < 2) return Double.MAX_VALUE;
+            double mean = mean(), sq = 0;
+            for (double r : this.rates) sq += (r - mean) * (r - mean);
+            double t = n - 1 <= T95.length?T95[n - 2]:1.96;
+            return t * Math.sqrt(sq / (n - 1)) / Math.sqrt(n);
+        }
+
+        boolean converged() {
+            return this.failed || (trials() >= MIN_TRIALS && (trials() >= MAX_TRIALS || halfWidth() <= CONVERGED * mean()));
+        }
+
+        // Significantly faster than 'other': the intervals don't overlap
+        boolean beats(Config other) {
+            if (this.failed) return false;
+            if (other.failed) return true;
+            return mean() - halfWidth() > other.mean() + other.halfWidth();
+        }
+
+        @Override
+        public String toString() {
+            return this.mode + ", " + this.streams + " stream(s)" + (this.mode.equals(RANGED)?", " + this.readSize / 1024 + " KB reads":"");
+        }
+
+        String interval() {
+            if (this.failed) return "failed";
+            double hw = halfWidth();
+            return hw==Double.MAX_VALUE?String.format("%.2f MB/s", mean()):
+                    String.format("%.2f MB/s (95%% CI %.2f - %.2f)", mean(), Math.max(0, mean() - hw), mean() + hw);
+        }
+    }
+
+    private final EgaDBAPIWrapper api;
+    private final String server;
+    private final String executorMode;
+    private final Tickets tickets;
+    private final long size; // bytes per ticket
+    private long budget; // bytes over all trials
+    private final int maxStreams;
+
+    private final LinkedHashMap<String, Config> tried = new LinkedHashMap<>();
+    private long transferred = 0;
+    private int trials = 0;
+    private boolean exhausted = false;
+    private final Random rnd = new Random();
+
+    public EgaAutoTuner(EgaDBAPIWrapper api, String server, String executorMode, Tickets tickets, long size, long budget) {
+        this.api = api;
+        this.server = server;
+        this.executorMode = executorMode;
+        this.tickets = tickets;
+        this.size = size;
+        this.budget = budget;
+        this.maxStreams = Math.min(MAX_TUNED_STREAMS, EgaExecutors.maxStreams(executorMode));
+    }
+
+    // Bytes the whole search from 'start' streams takes at most: a trial per
+    // mode, the two best to MAX_TRIALS, doubling up to maxStreams, the midpoint,
+    // the other read sizes and the runner-up at the final stream count
+    public long budget(int start) {
+        start = Math.max(1, Math.min(this.maxStreams, start));
+        long streams = MODES.length * start + 2L * (MAX_TRIALS - 1) * start;
+        for (int s = start; s < this.maxStreams; s = Math.min(this.maxStreams, s * 2))
+            streams += MIN_TRIALS * (long) Math.min(this.maxStreams, s * 2);
+        streams += (READ_SIZES.length + 1L) * MIN_TRIALS * this.maxStreams;
+        return streams * this.size;
+    }
+
+    // Search from 'start' streams; returns the best configuration (null if nothing worked)
+    public Config tune(int start) {
+        start = Math.max(1, Math.min(this.maxStreams, start));
+        int readSize = EgaSegmentedDownload.getReadSize();
+        if (this.budget <= 0)
+            this.budget = budget(start);
+        System.out.println("Auto-tune: up to " + this.budget / 1024 / 1024 + " MB of test downloads.");
+
+        // 1. Transfer mode: one trial each, then the two fastest until they converge
+        ArrayList<Config> modes = new ArrayList<>();
+        for (String mode : MODES) {
+            Config c = sample(mode, start, readSize, false);
+            if (c != null && !c.failed) modes.add(c);
+        }
+        if (modes.isEmpty()) return null;
+        Collections.sort(modes, new Comparator<Config>() {
+            @Override
+            public int compare(Config a, Config b) {
+                return Double.compare(b.mean(), a.mean());
+            }
+        });
+        Config best = converge(modes.get(0).mode, start, readSize), runnerUp = null;
+        if (modes.size() > 1) {
+            Config second = converge(modes.get(1).mode, start, readSize);
+            if (best.failed || second.failed) {
+                if (best.failed) best = second;
+            } else if (second.beats(best)) {
+                runnerUp = best;
+                best = second;
+            } else
+                runnerUp = second;
+            if (runnerUp != null && best.beats(runnerUp)) runnerUp = null;
+        }
+
+        // 2. Streams, 3. read size
+        best = streams(best);
+        if (best.mode.equals(RANGED))
+            best = readSize(best);
+
+        // 4. The runner-up at the final stream count
+        if (runnerUp != null && best.streams != runnerUp.streams) {
+            Config other = converge(runnerUp.mode, best.streams, best.readSize);
+            if (other != null && other.beats(best)) {
+                best = streams(other);
+                if (best.mode.equals(RANGED))
+                    best = readSize(best);
+            }
+        }
+        return best;
+    }
+
+    private Config streams(Config best) {
+        boolean up = false;
+        Config rejected = null, previous = null;
+        while (best.streams < this.maxStreams) { // more streams while it helps
+            Config next = converge(best.mode, Math.min(this.maxStreams, best.streams * 2), best.readSize);
+            if (next == null) return best;
+            if (!next.beats(best)) {
+                rejected = next;
+                break;
+            }
+            previous = best;
+            best = next;
+            up = true;
+        }
+        if (!up) { // fewer streams, unless that is worse
+            while (best.streams > 1) {
+                Config next = converge(best.mode, best.streams / 2, best.readSize);
+                if (next == null) return best;
+                if (best.beats(next)) {
+                    rejected = next;
+                    break;
+                }
+                best = next;
+            }
+        }
+        if (rejected != null && Math.abs(rejected.streams - best.streams) > 1) { // once in between
+            Config mid = converge(best.mode, (rejected.streams + best.streams) / 2, best.readSize);
+            if (mid != null && (mid.beats(best) || (mid.streams < best.streams && !best.beats(mid))))
+                best = mid;
+        }
+        if (previous != null && best.streams - previous.streams > 1) { // the last doubling may overshoot
+            Config mid = converge(best.mode, (previous.streams + best.streams) / 2, best.readSize);
+            if (mid != null && !best.beats(mid))
+                best = mid;
+        }
+        return best;
+    }
+
+    private Config readSize(Config best) {
+        for (int r : READ_SIZES) {
+            if (r == best.readSize) continue;
+            Config next = converge(RANGED, best.streams, r);
+            if (next != null && next.beats(best))
+                best = next;
+        }
+        return best;
+    }
+
+    // The configuration, measured until it converged; null if the budget is spent
+    private Config converge(String mode, int streams, int readSize) {
+        return sample(mode, streams, readSize, true);
+    }
+
+    // The configuration, measured once (or until it converged)
+    private Config sample(String mode, int streams, int readSize, boolean converge) {
+        String key = mode + "/" + streams + "/" + (mode.equals(RANGED)?readSize:0);
+        Config c = this.tried.get(key);
+        if (c == null) {
+            c = new Config(mode, streams, readSize);
+            this.tried.put(key, c);
+        }
+        while (converge?!c.converged():(c.trials() == 0 && !c.failed)) {
+            if (this.transferred + streams * this.size > this.budget) {
+                if (!this.exhausted)
+                    System.out.println("Auto-tune: transfer budget of " + this.budget / 1024 / 1024 + " MB reached.");
+                this.exhausted = true;
+                return c.trials()>0?c:null;
+            }
+            measure(c);
+        }
+        return c;
+    }
+
+    private void measure(Config c) {
+        boolean ranged = c.mode.equals(RANGED);
+        this.api.setUdt(c.mode.equals(UDT));
+        this.api.setAlt(c.mode.equals(HTTP)); // UDT needs Netty
+        EgaSegmentedDownload.setReadSize(c.readSize);
+
+        String label = "AutoTune" + String.valueOf(this.rnd.nextInt());
+        EgaTicketStore store = this.tickets.request(c.streams, this.size, label);
+        try {
+            if (store == null || store.size() == 0) {
+                c.failed = true;
+                return;
+            }
+            EgaNullBenchmark benchmark = new EgaNullBenchmark(this.api, this.server, c.streams, this.executorMode);
+            benchmark.setViaApi(!ranged);
+            benchmark.run(store);
+            this.trials++;
+            this.transferred += store.size() * this.size;
+            if (benchmark.getFailed() == store.size() || (ranged && benchmark.getTtfb(0.5) < 0)) {
+                c.failed = true; // mode not available here (ranged: no ticket URL)
+                System.out.println("Auto-tune: " + c + " - not available.");
+                return;
+            }
+            c.rates.add(benchmark.getRate());
+            System.out.println(String.format("Auto-tune trial %d: %s - %.2f MB/s", this.trials, c, benchmark.getRate()));
+        } finally {
+            this.tickets.delete(label);
+        }
+    }
+
+    public String report(Config best) {
+        StringBuilder sb = new StringBuilder();
+        ArrayList<Config> all = new ArrayList<>(this.tried.values());
+        Collections.sort(all, new Comparator<Config>() {
+            @Override
+            public int compare(Config a, Config b) {
+                return Double.compare(b.failed?-1:b.mean(), a.failed?-1:a.mean());
+            }
+        });
+        sb.append(String.format("%-8s %8s %8s %7s  %s%n", "mode", "streams", "read KB", "trials", "throughput"));
+        for (Config c : all)
+            if (c.trials() > 0 || c.failed)
+                sb.append(String.format("%-8s %8d %8s %7d  %s%n", c.mode, c.streams, c.mode.equals(RANGED)?String.valueOf(c.readSize / 1024):"-",
+                        c.trials(), c.interval()));
+        sb.append(String.format("%d trial(s), %.1f MB transferred%s.%n", this.trials, this.transferred / 1024.0 / 1024.0,
+                this.exhausted?" (budget reached before the search converged)":""));
+        if (best == null)
+            sb.append("No configuration worked.\n");
+        else
+            sb.append("Best: ").append(best).append(" - ").append(best.interval()).append("\n");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egademoclient;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import uk.ac.embl.ebi.ega.egadbapiwrapper.EgaDBAPIWrapper;
+import utils.BufferPool;
+
+/**
+ *
+ * @author asenf
+ *
+ * Decrypts one .cip file on several cores. A .cip file is a 16 byte IV
+ * followed by AES-128 in CTR mode, so the key stream at any 16 byte block can
+ * be computed directly (counter = IV + block number): the file is cut into
+ * CHUNK_SIZE pieces, and each worker reads and writes its own piece with
+ * positional I/O on shared channels.
+ *
+ * The key derivation is done here, not by the API; so before the full run
+ * the first PROBE_SIZE bytes are decrypted both ways (the API decrypts a
+ * truncated copy) and compared. On any difference - or any error - the file
+ * is decrypted by the API instead, so the output is always identical to the
+ * sequential result.
+ */
+public class EgaChunkedDecrypt {
+
+    public static final long MIN_FILE_SIZE = 1024L * 1024L * 1024L; // worth splitting from here on
+
+    static final int IV_SIZE = 16;
+    private static final long CHUNK_SIZE = 64L * 1024L * 1024L;      // multiple of the AES block size
+    private static final int BUFFER_SIZE = 4 * 1024 * 1024;
+    static final int PROBE_SIZE = 1024 * 1024;
+
+    // Key derivation of CIP files (PBKDF2, fixed salt); checked by the probe
+    private static final byte[] SALT = {(byte)-12, (byte)34, (byte)1, (byte)0, (byte)-98, (byte)223, (byte)78, (byte)21};
+    private static final int ITERATIONS = 1024;
+
+    // Keys for which the derivation was checked against the API
+    private static final Set<String> verified = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final EgaDBAPIWrapper api;
+    private final File source;
+    private final String key, path;
+    private final int workers;
+    private final boolean delete;
+
+    public EgaChunkedDecrypt(EgaDBAPIWrapper api, String source, String key, String path, int workers, boolean delete) {
+        this.api = api;
+        this.source = new File(source);
+        this.key = key;
+        this.path = (path==null || path.length()==0)?this.source.getAbsoluteFile().getParent():path;
+        this.workers = Math.max(1, workers);
+        this.delete = delete;
+    }
+
+    public String decrypt() {
+        String name = this.source.getName();
+        File target = new File(this.path, name.endsWith(".cip")?name.substring(0, name.length()-4):name + ".decrypted");
+        long time = System.currentTimeMillis();
+        try {
+            SecretKeySpec secret = secret(this.key);
+            if (!probe(secret)) {
+                System.out.println("Chunked decryption not possible for " + name + ": decrypting sequentially.");
+                return sequential();
+            }
+            run(secret, target);
+        } catch (IOException | GeneralSecurityException | InterruptedException | ExecutionException ex) {
+            System.err.println("Chunked decryption error: " + ex.getLocalizedMessage() + " - decrypting sequentially.");
+            return sequential();
+        }
+        if (this.delete)
+            this.source.delete();
+        time = System.currentTimeMillis() - time;
+        double mb = (this.source.length() > 0?this.source.length():target.length()) / 1024.0 / 1024.0;
+        return String.format("Decrypted %s with %d worker(s): %.1f MB in %.1f s, %.2f MB/s.",
+                target.getPath(), this.workers, mb, time / 1000.0, mb / Math.max(0.001, time / 1000.0));
+    }
+
+    private String sequential() {
+        ArrayList<String> files = new ArrayList<>();
+        files.add(this.source.getPath());
+        this.api.decrypt(this.key, this.path, files, 128, this.delete);
+        return "Decrypted " + this.source.getPath();
+    }
+
+    static SecretKeySpec secret(String key) throws GeneralSecurityException {
+        SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+        PBEKeySpec spec = new PBEKeySpec(key.toCharArray(), SALT, ITERATIONS, 128);
+        return new SecretKeySpec(factory.generateSecret(spec).getEncoded(), "AES");
+    }
+
+    // Counter block for the plaintext offset 'offset' (a multiple of 16)
+    static byte[] counter(byte[] iv, long offset) {
+        byte[] sum = new BigInteger(1, iv).add(BigInteger.valueOf(offset / 16)).toByteArray();
+        byte[] block = new byte[IV_SIZE];
+        int n = Math.min(sum.length, IV_SIZE); // wraps around at 2^128, like the cipher
+        System.arraycopy(sum, sum.length - n, block, IV_SIZE - n, n);
+        return block;
+    }
+
+    private byte[] iv() throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(this.source, "r")) {
+            byte[] iv = new byte[IV_SIZE];
+            in.readFully(iv);
+            return iv;
+        }
+    }
+
+    // Compare the start of the file, decrypted here and by the API
+    private boolean probe(SecretKeySpec secret) throws IOException, GeneralSecurityException {
+        int n = (int) Math.min(PROBE_SIZE, this.source.length() - IV_SIZE);
+        if (n <= 0) return false;
+        byte[] head = new byte[IV_SIZE + n];
+        try (RandomAccessFile in = new RandomAccessFile(this.source, "r")) {
+            in.readFully(head);
+        }
+        return verifyKey(this.api, this.key, secret, head, new File(this.path));
+    }
+
+    // Does our key derivation decrypt 'head' (IV + start of a .cip file) exactly
+    // like the API does? Checked once per key; the API decrypts a copy in 'dir'
+    static boolean verifyKey(EgaDBAPIWrapper api, String key, SecretKeySpec secret, byte[] head, File dir)
+            throws IOException, GeneralSecurityException {
+        if (verified.contains(key)) return true;
+        int n = head.length - IV_SIZE;
+        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, secret, new IvParameterSpec(Arrays.copyOf(head, IV_SIZE)));
+        byte[] mine = cipher.doFinal(head, IV_SIZE, n);
+
+        File tmp = Files.createTempDirectory(dir.toPath(), ".egaprobe").toFile();
+        try {
+            File probe = new File(tmp, "probe.cip");
+            Files.write(probe.toPath(), head);
+            ArrayList<String> files = new ArrayList<>();
+            files.add(probe.getPath());
+            api.decrypt(key, tmp.getPath(), files, 128, false);
+            for (File f : tmp.listFiles()) {
+                if (f.equals(probe)) continue;
+                byte[] theirs = Files.readAllBytes(f.toPath());
+                if (theirs.length >= n && Arrays.equals(mine, Arrays.copyOf(theirs, n))) {
+                    verified.add(key);
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            for (File f : tmp.listFiles())
+                f.delete();
+            tmp.delete();
+        }
+    }
+
+    private void run(final SecretKeySpec secret, File target) throws IOException, InterruptedException, ExecutionException {
+        final byte[] iv = iv();
+        final long length = this.source.length() - IV_SIZE;
+        File part = new File(target.getPath() + ".egadecrypt");
+        final AtomicLong next = new AtomicLong(0);
+        ExecutorService executor = EgaExecutors.newExecutor(EgaExecutors.POOL, this.workers);
+        boolean ok = false;
+        try (RandomAccessFile raf = new RandomAccessFile(part, "rw");
+             final FileChannel in = new RandomAccessFile(this.source, "r").getChannel();
+             final FileChannel out = raf.getChannel()) {
+            raf.setLength(length); // preallocate; regions are filled in any order
+            ArrayList<Future<Void>> f = new ArrayList<>();
+            for (int w=0; w<this.workers; w++) {
+                f.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+                        ByteBuffer buf = BufferPool.get().acquire(BUFFER_SIZE);
+                        try {
+                            long from;
+                            while ((from = next.getAndAdd(CHUNK_SIZE)) < length) {
+                                long to = Math.min(length, from + CHUNK_SIZE);
+                                cipher.init(Cipher.DECRYPT_MODE, secret, new IvParameterSpec(counter(iv, from)));
+                                for (long pos = from; pos < to; ) {
+                                    buf.clear();
+                                    buf.limit((int) Math.min(BUFFER_SIZE, to - pos));
+                                    while (buf.hasRemaining()) {
+                                        if (in.read(buf, IV_SIZE + pos + buf.position()) < 0)
+                                            throw new IOException("Unexpected end of file at " + (pos + buf.position()));
+                                    }
+                                    buf.flip();
+                                    cipher.update(buf.duplicate(), buf.duplicate()); // in place; CTR: same number of bytes out as in
+                                    long at = pos;
+                                    while (buf.hasRemaining())
+                                        at += out.write(buf, at);
+                                    pos = at;
+                                }
+                            }
+                        } finally {
+                            BufferPool.get().release(buf);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> one : f)
+                one.get();
+            out.force(true);
+            ok = true;
+        } finally {
+            executor.shutdownNow();
+            if (!ok) part.delete();
+        }
+        Files.move(part.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
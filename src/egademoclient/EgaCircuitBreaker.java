@@ -0,0 +1,129 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egademoclient;
+
+import java.util.HashMap;
+
+/**
+ *
+ * @author asenf
+ *
+ * Per-server circuit breaker. Keeps the outcome of the last WINDOW downloads
+ * per data server; if at least MIN_SAMPLES are known and more than ERROR_RATE
+ * of them failed, the circuit opens and no new downloads are started on that
+ * server for the cool-down period (doubling each time it re-opens, up to
+ * MAX_COOLDOWN). After the cool-down one download is let through (half-open):
+ * if it succeeds the circuit closes again. Only that probe decides - results
+ * of downloads started before the circuit opened are ignored while it is
+ * half-open.
+ *
+ * Outcomes are recorded for the server that actually did the transfer: a
+ * ranged download records its probe and every segment (which, with striping,
+ * may come from different servers), an API download the primary data server.
+ */
+public class EgaCircuitBreaker {
+
+    private static final int WINDOW = 20, MIN_SAMPLES = 10;
+    private static final double ERROR_RATE = 0.5;
+    private static final long COOLDOWN = 30000, MAX_COOLDOWN = 300000; // ms
+
+    private enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final HashMap<String, Circuit> circuits = new HashMap<>();
+
+    private static class Circuit {
+        private final boolean[] window = new boolean[WINDOW]; // true = failure
+        private int count = 0, next = 0, failures = 0;
+        private State state = State.CLOSED;
+        private long openUntil = 0, cooldown = COOLDOWN;
+        private boolean probing = false;
+    }
+
+    private Circuit circuit(String server) {
+        Circuit c = this.circuits.get(server);
+        if (c == null) {
+            c = new Circuit();
+            this.circuits.put(server, c);
+        }
+        return c;
+    }
+
+    // May a new download be started on this server?
+    public synchronized boolean allow(String server) {
+        Circuit c = circuit(server);
+        if (c.state == State.OPEN && System.currentTimeMillis() >= c.openUntil) {
+            c.state = State.HALF_OPEN;
+            c.probing = false;
+            System.out.println("Circuit half-open for " + server + ": trying one download.");
+        }
+        if (c.state == State.HALF_OPEN) {
+            if (c.probing) return false;
+            c.probing = true;
+            return true;
+        }
+        return c.state == State.CLOSED;
+    }
+
+    // Is the circuit half-open? Right after allow(), this means the caller holds the one probe
+    public synchronized boolean isHalfOpen(String server) {
+        return circuit(server).state == State.HALF_OPEN;
+    }
+
+    // ms until the circuit for this server may let a download through again (0 if closed)
+    public synchronized long waitTime(String server) {
+        Circuit c = circuit(server);
+        return c.state == State.OPEN?Math.max(0, c.openUntil - System.currentTimeMillis()):0;
+    }
+
+    // 'probe': this transfer was let through by allow() while the circuit was half-open
+    public synchronized void record(String server, boolean failure, boolean probe) {
+        Circuit c = circuit(server);
+        if (c.state == State.HALF_OPEN) {
+            if (!probe)
+                return;
+            if (failure) {
+                c.cooldown = Math.min(MAX_COOLDOWN, c.cooldown * 2);
+                open(server, c, "probe failed");
+            } else {
+                c.state = State.CLOSED;
+                c.cooldown = COOLDOWN;
+                c.count = c.next = c.failures = 0;
+                System.out.println("Circuit closed for " + server + ".");
+            }
+            return;
+        }
+
+        if (c.count == WINDOW && c.window[c.next]) c.failures--;
+        c.window[c.next] = failure;
+        if (failure) c.failures++;
+        c.next = (c.next + 1) % WINDOW;
+        c.count = Math.min(WINDOW, c.count + 1);
+
+        if (c.state == State.CLOSED && c.count >= MIN_SAMPLES && c.failures > c.count * ERROR_RATE)
+            open(server, c, c.failures + " of the last " + c.count + " downloads failed");
+    }
+
+    private void open(String server, Circuit c, String reason) {
+        c.state = State.OPEN;
+        c.openUntil = System.currentTimeMillis() + c.cooldown;
+        c.probing = false;
+        System.out.println("Circuit open for " + server + " (" + reason + "): pausing new downloads for " + (c.cooldown/1000) + " s.");
+    }
+
+    public synchronized String status(String server) {
+        return circuit(server).state.toString().toLowerCase();
+    }
+}
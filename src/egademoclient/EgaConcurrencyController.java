@@ -0,0 +1,108 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egademoclient;
+
+/**
+ *
+ * @author asenf
+ *
+ * AIMD controller for the number of parallel download streams. The scheduler
+ * reports the total number of bytes received so far, plus errors and locked
+ * tickets; every EVAL_INTERVAL ms the controller compares aggregate and
+ * per-stream goodput with the previous interval:
+ *   - errors or 'Ticket is Locked!' responses: halve the number of streams
+ *   - falling per-stream rate without aggregate gain: back off by a quarter
+ *   - rising aggregate rate: add one stream
+ *   - otherwise: hold
+ * Every decision is logged.
+ */
+public class EgaConcurrencyController {
+
+    public static final long EVAL_INTERVAL = 15000; // ms
+    private static final double GAIN = 1.05;  // aggregate must grow by 5% to count as 'climbing'
+    private static final double DROP = 0.80;  // per-stream rate falling by 20% counts as 'falling'
+
+    private final int floor, ceiling;
+    private int limit;
+
+    private long lastTime, lastBytes = -1;
+    private double lastAggregate = -1, lastPerStream = -1;
+    private int errors = 0, locked = 0;
+
+    public EgaConcurrencyController(int start, int floor, int ceiling) {
+        this.floor = Math.max(1, floor);
+        this.ceiling = Math.max(this.floor, ceiling);
+        this.limit = Math.min(this.ceiling, Math.max(this.floor, start));
+        this.lastTime = System.currentTimeMillis();
+        System.out.println("Adaptive concurrency: start " + this.limit + " streams (floor " + this.floor + ", ceiling " + this.ceiling + ")");
+    }
+
+    public synchronized int limit() {
+        return this.limit;
+    }
+
+    public int ceiling() {
+        return this.ceiling;
+    }
+
+    public synchronized void error(boolean isLocked) {
+        if (isLocked) this.locked++;
+        else this.errors++;
+    }
+
+    // Called periodically by the scheduler; returns the new stream limit
+    public synchronized int update(long totalBytes, int activeStreams) {
+        long now = System.currentTimeMillis();
+        if (now - this.lastTime < EVAL_INTERVAL)
+            return this.limit;
+
+        if (this.lastBytes < 0) { // First sample - just set the baseline
+            this.lastBytes = totalBytes;
+            this.lastTime = now;
+            return this.limit;
+        }
+
+        double aggregate = ((totalBytes - this.lastBytes) / 1024.0 / 1024.0) / ((now - this.lastTime) / 1000.0);
+        double perStream = aggregate / Math.max(1, activeStreams);
+
+        int old = this.limit;
+        String reason;
+        if (this.errors > 0 || this.locked > 0) {
+            this.limit = Math.max(this.floor, this.limit / 2);
+            reason = "back off: " + this.errors + " error(s), " + this.locked + " locked ticket(s)";
+        } else if (this.lastPerStream > 0 && perStream < this.lastPerStream * DROP && aggregate < this.lastAggregate * GAIN) {
+            this.limit = Math.max(this.floor, (this.limit * 3) / 4);
+            reason = "back off: per-stream rate falling";
+        } else if (this.lastAggregate < 0 || aggregate > this.lastAggregate * GAIN) {
+            this.limit = Math.min(this.ceiling, this.limit + 1);
+            reason = "increase: aggregate rate climbing";
+        } else {
+            reason = "hold: aggregate rate flat";
+        }
+
+        System.out.println(String.format("Adaptive concurrency: %d -> %d streams (%s; aggregate %.2f MB/s, per-stream %.2f MB/s)",
+                old, this.limit, reason, aggregate, perStream));
+
+        this.lastAggregate = aggregate;
+        this.lastPerStream = perStream;
+        this.lastBytes = totalBytes;
+        this.lastTime = now;
+        this.errors = 0;
+        this.locked = 0;
+
+        return this.limit;
+    }
+}
@@ -0,0 +1,264 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egademoclient;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.StringTokenizer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import uk.ac.embl.ebi.ega.egadbapiwrapper.EgaDBAPIWrapper;
+
+/**
+ *
+ * @author asenf
+ *
+ * Bounded pool of decrypt workers. Every file goes through the same API call
+ * as the 'decrypt' command (one file per call, so files decrypt in parallel).
+ * At most 'backlog' files per worker may be waiting: submit() blocks beyond
+ * that, and offer() refuses the file. The download scheduler uses offer(),
+ * keeps refused files itself, and starts no new downloads until decryption
+ * has caught up.
+ * 
+ * Decryption is I/O-bound for large files, so no more than LARGE_PER_DISK
+ * files of LARGE_FILE or more are decrypted at the same time on one file
+ * system; further large files on that file system wait (without occupying a
+ * worker) until one finishes, while small files keep the other workers busy.
+ * 
+ * The API call doesn't report failures, so a file only counts as decrypted
+ * if its plaintext is there afterwards, IV_SIZE bytes shorter than the .cip.
+ */
+public class EgaDecryptPool {
+
+    public static final int PIPELINE_BACKLOG = 1; // waiting files per worker, when fed by downloads
+    public static final int UNBOUNDED = -1;
+
+    private static final long LARGE_FILE = 1024L * 1024L * 1024L;
+    private static final int LARGE_PER_DISK = 2;
+
+    private final EgaDBAPIWrapper api;
+    private final String key, path;
+    private final boolean delete;
+    private final int workers;
+    private final ExecutorService executor;
+    private final Semaphore slots;
+    private final HashMap<String, Integer> largeRunning = new HashMap<>();        // per file system
+    private final HashMap<String, ArrayDeque<String>> largeWaiting = new HashMap<>();
+
+    // Told about every file once it is finished (called on a worker thread)
+    public interface Listener {
+        public void decrypted(String file, boolean ok);
+    }
+
+    private volatile Listener listener = null;
+    private final AtomicInteger done = new AtomicInteger(0), failed = new AtomicInteger(0);
+    private final AtomicLong bytes = new AtomicLong(0);
+    private final long start = System.currentTimeMillis();
+
+    public EgaDecryptPool(EgaDBAPIWrapper api, String key, String path, int workers, boolean delete, int backlog) {
+        this.api = api;
+        this.key = key;
+        this.path = (path==null || path.length()==0)?".":path; // the wrapper is given this directory too
+        this.delete = delete;
+        this.workers = Math.max(1, workers);
+        this.executor = EgaExecutors.newExecutor(EgaExecutors.POOL, this.workers);
+        this.slots = new Semaphore(backlog<0?Integer.MAX_VALUE:this.workers * (1 + backlog));
+    }
+
+    // Files named by a spec: a directory (all .cip files in it), a glob such
+    // as 'data/*.cip', or a comma-separated list of files. Largest first
+    public static ArrayList<String> expand(String spec) {
+        ArrayList<String> files = new ArrayList<>();
+        StringTokenizer token = new StringTokenizer(spec, ",");
+        while (token.hasMoreTokens()) {
+            String one = token.nextToken().trim();
+            File f = new File(one);
+            try {
+                if (f.isDirectory()) {
+                    list(f.toPath(), "*.cip", files);
+                } else if (one.contains("*") || one.contains("?") || one.contains("[")) {
+                    Path dir = Paths.get(one).getParent();
+                    list(dir==null?Paths.get("."):dir, Paths.get(one).getFileName().toString(), files);
+                } else if (f.exists()) {
+                    files.add(one);
+                } else
+                    System.out.println("Specified file '" + one + "' does not exist or can't be found. Skipping this file.");
+            } catch (IOException ex) {
+                System.out.println("Can't list '" + one + "': " + ex.getLocalizedMessage());
+            }
+        }
+        Collections.sort(files, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) { // Largest first
+                return Long.compare(new File(b).length(), new File(a).length());
+            }
+        });
+        return files;
+    }
+
+    private static void list(Path dir, String glob, ArrayList<String> files) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, glob)) {
+            for (Path p : stream)
+                if (Files.isRegularFile(p))
+                    files.add(p.toString());
+        }
+    }
+
+    public int getWorkers() {
+        return this.workers;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    // Queue a file for decryption; blocks while the backlog is full
+    public void submit(String file) throws InterruptedException {
+        this.slots.acquire();
+        dispatch(file);
+    }
+
+    // Queue a file for decryption if the backlog has room; false if it is full
+    public boolean offer(String file) {
+        if (!this.slots.tryAcquire())
+            return false;
+        dispatch(file);
+        return true;
+    }
+
+    // Start a file (slot taken), or park it behind the large files on its file system
+    private void dispatch(String file) {
+        if (new File(file).length() >= LARGE_FILE) {
+            String disk = disk(file);
+            synchronized (this) {
+                Integer running = this.largeRunning.get(disk);
+                if (running != null && running >= LARGE_PER_DISK) {
+                    ArrayDeque<String> waiting = this.largeWaiting.get(disk);
+                    if (waiting == null) {
+                        waiting = new ArrayDeque<>();
+                        this.largeWaiting.put(disk, waiting);
+                    }
+                    waiting.add(file);
+                    return;
+                }
+                this.largeRunning.put(disk, running==null?1:running+1);
+            }
+            start(file, disk);
+        } else
+            start(file, null);
+    }
+
+    private void start(final String file, final String disk) {
+        try {
+            this.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        decrypt(file);
+                    } finally {
+                        slots.release();
+                        if (disk != null) next(disk);
+                    }
+                }
+            });
+        } catch (RuntimeException ex) {
+            this.slots.release();
+            throw ex;
+        }
+    }
+
+    // A large file on 'disk' finished: start the next one waiting there (under
+    // the lock, so finish() can't see an empty queue before it has started)
+    private synchronized void next(String disk) {
+        ArrayDeque<String> waiting = this.largeWaiting.get(disk);
+        String file = waiting==null?null:waiting.poll();
+        if (file != null)
+            start(file, disk);
+        else
+            this.largeRunning.put(disk, this.largeRunning.get(disk) - 1);
+    }
+
+    // File system a file lives on
+    private static String disk(String file) {
+        try {
+            return Files.getFileStore(Paths.get(file)).toString();
+        } catch (IOException ex) {
+            return "";
+        }
+    }
+
+    private void decrypt(String file) {
+        long length = new File(file).length();
+        String name = new File(file).getName();
+        File plain = new File(this.path, name.endsWith(".cip")?name.substring(0, name.length()-4):name + ".decrypted");
+        ArrayList<String> files = new ArrayList<>();
+        files.add(file);
+        boolean ok = false;
+        try {
+            this.api.decrypt(this.key, this.path, files, 128, this.delete);
+            ok = plain.exists() && plain.length() == length - EgaChunkedDecrypt.IV_SIZE;
+            if (!ok)
+                System.err.println("Decryption of " + file + " failed: no complete plaintext " + plain.getPath());
+        } catch (Throwable t) {
+            System.err.println("Decryption of " + file + " failed: " + t.getLocalizedMessage());
+        }
+        if (ok) {
+            this.bytes.addAndGet(length);
+            this.done.incrementAndGet();
+        } else
+            this.failed.incrementAndGet();
+        Listener listener_ = this.listener;
+        if (listener_ != null)
+            listener_.decrypted(file, ok);
+    }
+
+    private synchronized boolean idle() {
+        for (ArrayDeque<String> waiting : this.largeWaiting.values())
+            if (!waiting.isEmpty()) return false;
+        return true;
+    }
+
+    // Wait for all queued files; returns a summary line
+    public String finish() {
+        try {
+            // Large files still waiting for their file system are started by running tasks
+            while (!idle())
+                Thread.sleep(100);
+            this.executor.shutdown();
+            while (!this.executor.awaitTermination(60, TimeUnit.SECONDS))
+                System.out.println("Waiting for decryption: " + this.done.get() + " file(s) decrypted so far.");
+        } catch (InterruptedException ex) {
+            this.executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        double seconds = Math.max(0.001, (System.currentTimeMillis() - this.start) / 1000.0);
+        return String.format("Decrypted %d file(s) (%d failed) with %d worker(s): %.1f MB in %.1f s, %.2f MB/s.",
+                this.done.get(), this.failed.get(), this.workers, this.bytes.get() / 1024.0 / 1024.0, seconds,
+                this.bytes.get() / 1024.0 / 1024.0 / seconds);
+    }
+}
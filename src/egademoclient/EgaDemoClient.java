@@ -27,6 +27,8 @@ import java.net.HttpURLConnection;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
@@ -36,14 +38,6 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Random;
 import java.util.Scanner;
-import java.util.StringTokenizer;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.commons.cli.BasicParser;
@@ -58,7 +52,8 @@ import uk.ac.embl.ebi.ega.egadbapiwrapper.EgaDBAPIWrapper;
 import uk.ac.embl.ebi.ega.filesystems.EgaMemoryCIPFuse;
 import uk.ac.embl.ebi.ega.utils.EgaFile;
 import uk.ac.embl.ebi.ega.utils.EgaTicket;
-import utils.MyTimerTask;
+import utils.BandwidthLimiter;
+import utils.BufferPool;
 import utils.Version;
 
 /*
@@ -73,7 +68,7 @@ public class EgaDemoClient {
     private static String infoServer = "ega.ebi.ac.uk";
     private static String dataServer = "ega.ebi.ac.uk"; //ega.ebi.ac.uk:8112";
     private static String dataServer2 = "ega.ebi.ac.uk"; //"xfer.crg.eu";
-    private static final boolean ssl = true;
+    private static boolean ssl = true; // off only for local servers (-local ... http)
     private static int primaryServer = 1;
 
     private static final String dataServerTest = "pg-ega-pro-05.ebi.ac.uk:8111";
@@ -84,8 +79,18 @@ public class EgaDemoClient {
     private EgaDBAPIWrapper api; // Local SQLite DB enabled API Wrapper
     private long time;
     private double rate = -1.0;
-    private int calibratedThreads = 3;
+    private int calibratedThreads = 3; // Starting point for adaptive downloads; updated after each one
+    private int defaultThreads = 5; // streams when none are given; set by 'autotune'
+    private boolean alt = true; // HttpURLConnection (true) or Netty transfers; set by 'autotune'
+    private static final int AUTO_THREADS = 0; // 'threads' value selecting adaptive concurrency
+    private int autoFloor = 1, autoCeiling = 15;
+    private int segments = 1; // Parallel connections per large (ranged) file
+    private String executorMode = EgaExecutors.POOL; // 'pool' or 'virtual' download threads
+    private String pipelineKey = null; // decrypt .cip files while downloading, if set
+    private String onTheFlyKey = null;  // decrypt the download stream itself, if set
+    private int decryptWorkers = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
     private String myIp = null;
+    private EgaWanProxy wanProxy = null; // test link in front of a server, if started
     private boolean useDB = false;
     
     private HashSet<String> legacy;
@@ -318,17 +323,38 @@ public class EgaDemoClient {
         sb.append("  details {ticket} - to list details about a request ticket.\n");
         sb.append("  request {'dataset'|'file'} {id} {reKey} {label} - to request data for download.\n");
         sb.append("  [requestpending {label} {reKey} - to request pending files in {label} for download.]\n");
-        sb.append("  download {label} [{parallel}] - to download a request (multiple files); by default 5 parallel streams [can be specified 1-15].\n");
+        sb.append("  requestdownload {'dataset'|'file'} {id} {reKey} [{label} [{parallel}]] - request data and download each file as soon as its ticket exists.\n");
+        sb.append("  download {label} [{parallel}] - to download a request (multiple files); by default 5 parallel streams [can be specified 1-15; up to 1000 with executor virtual].\n");
+        sb.append("  downloadauto {label} [{min} {max}] [{'request'|'size'}] - download a request; the number of parallel streams adapts to measured throughput.\n");
+        sb.append("  download {label} {parallel} {'request'|'size'} - download a request; 'size' starts the largest files first and uses an extra lane for small files.\n");
         //sb.append("  downloadtocrg {label} {threads} - to download a request (multiple files) with the CRG Public Key.\n");
         sb.append("  ticketdownload {ticket} - to download one ticket (i.e. one file).\n");
-        //sb.append("  downloadtonull {label} - to download a request (multiple files) wihout saving\n");
-        //sb.append("  ticketdownloadtonull {ticket} - to download a file (i.e. a ticket) wihout saving it\n");
+        sb.append("  executor {'pool'|'virtual'} - run downloads on a thread pool (max 15 streams) or on virtual threads (max 1000 streams).\n");
+        sb.append("  testexecutors - compare memory and throughput of both executors at 15, 100 and 500 streams.\n");
+        sb.append("  bandwidth [{MB/s}] - show or set the bandwidth limit for all download streams (0 = no limit).\n");
+        sb.append("  bandwidthschedule {schedule} - time-of-day limits, e.g. 22:00-07:00=200,07:00-22:00=50 ('off' to clear).\n");
+        sb.append("  bandwidthhost {on/off} - share the bandwidth limit with all client processes on this host.\n");
+        sb.append("  striping {on/off} - spread ranged downloads over primary and backup data servers by measured speed.\n");
+        sb.append("  segments {connections} - download files of 1 GB or more as resumable byte ranges over several connections (default 1).\n");
+        sb.append("  bufferpool [{MB}] - show transfer buffer pool statistics, or set its memory budget (default 256 MB).\n");
+        sb.append("  directio {on/off} - write (and verify) downloads with direct I/O, bypassing the page cache of shared nodes.\n");
+        sb.append("  syncpolicy {'file'|'group'|'none'} [{seconds}] - fsync each file when complete, also all open files every N seconds (default, 5 s), or never.\n");
+        sb.append("  wanproxy {port} {host:port} [{conditions}] - forward localhost:{port} to a server as a slow link, e.g. rtt=150,jitter=10,bandwidth=50,stream=10,loss=0.1,reset=1 (ms, MB/s, %).\n");
+        sb.append("  wanproxy {conditions|'status'|'off'} - change the WAN proxy's conditions, show its statistics, or stop it.\n");
+        sb.append("  wanscript {phases|file} [{loop}] - change conditions over time, e.g. 60:rtt=20;60:rtt=150,loss=0.1 (seconds:conditions).\n");
+        sb.append("  downloadtonull {label} [{parallel}] - download a request without saving it: per-stream and aggregate throughput, time to first byte.\n");
+        sb.append("  ticketdownloadtonull {ticket} - download one ticket without saving it (network speed, without the disk).\n");
+        sb.append("  benchmarknull {streams} [{MB}] - request one test stream per stream (default 1024 MB) and download them to null.\n");
         sb.append("  deleterequest {label} - remove a request.\n");
         sb.append("  deleteticket {ticket} - remove a download ticket.\n");
-        sb.append("  decrypt {filename} {key} - decrypt a downloaded file.\n");
+        sb.append("  decrypt {filename} {key} - decrypt a downloaded file; also a comma-separated list, a directory or a glob ('dir/*.cip').\n");
+        sb.append("  decryptworkers {workers} - number of files decrypted in parallel (default: half the cores); a single file of 1 GB or more is split across them.\n");
+        sb.append("  decryptchunked {filename} {key} [{workers}] - decrypt one large .cip file in chunks on several cores.\n");
         sb.append("  decryptkeep {filename} {key} - decrypt a downloaded file, and keep (don't delete) the encrypted file.\n");
+        sb.append("  decryptdownload {key} - decrypt .cip files while they download, with the re-encryption key of the request; no ciphertext is written ('off' to disable).\n");
+        sb.append("  decryptpipeline {key} [{workers}] - decrypt each .cip file as soon as it is downloaded ('off' to disable).\n");
         //sb.append("  testbandwidth [{threads}] - test connection speed.\n");
-        //sb.append("  testbestdownload - try to determine best download parameters.\n");
+        sb.append("  autotune [{MB per stream} [{max GB}]] - find and apply the best streams, UDT/Netty/HttpURLConnection and read size by test downloads (default 64 MB; without a limit, enough for the whole search).\n");
         sb.append("  version - to show the version number of this shell.\n");
         sb.append("  verbose {true/false} - set level of output.\n");
         sb.append("  tutorial - quick instructions.\n");
@@ -408,6 +434,209 @@ public class EgaDemoClient {
         return "UDT set: " + this.api.getUdt() + "\n";
     }
 
+    @Command
+    public String segments(int connections) {
+        if (this.api== null || !this.api.session())
+            return "Log in first!\n";
+        
+        this.segments = connections<1?1:connections;
+        
+        return "Segments set: " + this.segments + " connection(s) per file (files of " +
+                (EgaSegmentedDownload.MIN_FILE_SIZE/1024/1024/1024) + " GB or more; these downloads are resumable)\n";
+    }
+
+    @Command
+    public String decryptchunked(String file, String key) {
+        return decryptchunked(file, key, this.decryptWorkers);
+    }
+    @Command
+    public String decryptchunked(String file, String key, int workers) {
+        if (!(new File(file)).exists())
+            return "Specified file '" + file + "' does not exist or can't be found.\n";
+        return new EgaChunkedDecrypt(this.api, file, key, ".", workers, true).decrypt() + "\n";
+    }
+    @Command
+    public String decryptworkers(int workers) {
+        this.decryptWorkers = workers<1?1:workers;
+        return "Decrypt workers set: " + this.decryptWorkers + " (" + Runtime.getRuntime().availableProcessors() + " cores)\n";
+    }
+    @Command
+    public String decryptdownload(String key) {
+        if (key.trim().equalsIgnoreCase("off")) {
+            this.onTheFlyKey = null;
+            return "On-the-fly decryption off: .cip files are saved encrypted.\n";
+        }
+        this.onTheFlyKey = key;
+        return "On-the-fly decryption on: .cip files are decrypted while downloading; only plaintext is written " +
+                "(a file the data server can't send in ranges fails instead of being saved encrypted).\n";
+    }
+    @Command
+    public String decryptpipeline(String key) {
+        return decryptpipeline(key, this.decryptWorkers);
+    }
+    @Command
+    public String decryptpipeline(String key, int workers) {
+        if (key.trim().equalsIgnoreCase("off")) {
+            this.pipelineKey = null;
+            return "Decrypt pipeline off: downloaded files are not decrypted.\n";
+        }
+        this.pipelineKey = key;
+        this.decryptWorkers = workers<1?1:workers;
+        return "Decrypt pipeline on: downloaded .cip files are decrypted by " + this.decryptWorkers + " worker(s) while the download continues.\n";
+    }
+
+    @Command
+    public String executor(String mode) {
+        if (this.api== null || !this.api.session())
+            return "Log in first!\n";
+        
+        if (mode.trim().equalsIgnoreCase(EgaExecutors.VIRTUAL))
+            this.executorMode = EgaExecutors.VIRTUAL;
+        else if (mode.trim().equalsIgnoreCase(EgaExecutors.POOL))
+            this.executorMode = EgaExecutors.POOL;
+        
+        String fallback = (this.executorMode.equals(EgaExecutors.VIRTUAL) && !EgaExecutors.virtualAvailable())?
+                " (no virtual threads in this JVM: using small-stack threads)":"";
+        return "Executor set: " + this.executorMode + ", up to " + EgaExecutors.maxStreams(this.executorMode) + " parallel streams" + fallback + "\n";
+    }
+    
+    @Command
+    public String testexecutors() {
+        return EgaExecutors.compare(new int[]{15, 100, 500});
+    }
+
+    @Command
+    public String bandwidth() {
+        return BandwidthLimiter.get().status() + "\n" + (BandwidthLimiter.get().isActive()?
+                "(Applies to ranged transfers: while a limit is set all downloads use them; a file the server only sends through the API is not limited.)\n":"");
+    }
+    @Command
+    public String bandwidth(int mbps) { // 0 = no limit
+        BandwidthLimiter.get().setRate(mbps * 1024L * 1024L);
+        return bandwidth();
+    }
+    @Command
+    public String bufferpool() {
+        return BufferPool.get().status() + "\n";
+    }
+    @Command
+    public String bufferpool(int mb) {
+        BufferPool.get().setBudget(mb * 1024L * 1024L);
+        return bufferpool();
+    }
+    @Command
+    public String directio(String tag) {
+        if (tag.trim().equalsIgnoreCase("true") || tag.trim().equalsIgnoreCase("on"))
+            return EgaFileSink.setDirect(true) + "\n";
+        if (tag.trim().equalsIgnoreCase("false") || tag.trim().equalsIgnoreCase("off"))
+            return EgaFileSink.setDirect(false) + "\n";
+        return EgaFileSink.directStatus() + "\n";
+    }
+    @Command
+    public String syncpolicy(String policy) {
+        return syncpolicy(policy, 0);
+    }
+    @Command
+    public String syncpolicy(String policy, int seconds) {
+        try {
+            return EgaFileSink.setPolicy(policy, seconds) + "\n";
+        } catch (IllegalArgumentException ex) {
+            return "Invalid sync policy '" + policy + "': use 'file', 'group' or 'none'\n";
+        }
+    }
+    @Command
+    public String wanproxy(int port, String target) {
+        return wanproxy(port, target, "none");
+    }
+    @Command
+    public String wanproxy(int port, String target, String conditions) {
+        if (this.wanProxy != null)
+            this.wanProxy.close();
+        this.wanProxy = null;
+        try {
+            EgaWanProxy proxy = new EgaWanProxy(port, target);
+            proxy.setConditions(conditions);
+            this.wanProxy = proxy;
+        } catch (IOException | IllegalArgumentException ex) {
+            return "Can't start the WAN proxy: " + ex.getLocalizedMessage() + "\n";
+        }
+        return this.wanProxy.status() + "\nConnect to localhost:" + this.wanProxy.getPort() + " instead of " + target + ".\n";
+    }
+    @Command
+    public String wanproxy(String conditions) {
+        if (this.wanProxy == null)
+            return "No WAN proxy running: wanproxy {port} {host:port} [{conditions}]\n";
+        if (conditions.trim().equalsIgnoreCase("off")) {
+            String status = this.wanProxy.status();
+            this.wanProxy.close();
+            this.wanProxy = null;
+            return status + "\nWAN proxy stopped.\n";
+        }
+        if (!conditions.trim().equalsIgnoreCase("status")) {
+            try {
+                this.wanProxy.setConditions(conditions);
+            } catch (IllegalArgumentException ex) {
+                return "Invalid conditions '" + conditions + "': " + ex.getLocalizedMessage() + "\n";
+            }
+        }
+        return this.wanProxy.status() + "\n";
+    }
+    @Command
+    public String wanscript(String phases) {
+        return wanscript(phases, false);
+    }
+    @Command
+    public String wanscript(String phases, boolean loop) {
+        if (this.wanProxy == null)
+            return "No WAN proxy running: wanproxy {port} {host:port} [{conditions}]\n";
+        try {
+            if (new File(phases).isFile())
+                phases = new String(Files.readAllBytes(new File(phases).toPath()), StandardCharsets.UTF_8);
+            this.wanProxy.runScript(phases, loop);
+        } catch (IOException | IllegalArgumentException ex) {
+            return "Invalid WAN script: " + ex.getLocalizedMessage() + "\n";
+        }
+        return "WAN script started" + (loop?" (repeating)":"") + ".\n";
+    }
+    @Command
+    public String bandwidthschedule(String schedule) {
+        try {
+            BandwidthLimiter.get().setSchedule(schedule.equalsIgnoreCase("off")?"":schedule);
+        } catch (IllegalArgumentException ex) { // includes NumberFormatException
+            return "Invalid schedule '" + schedule + "': use e.g. 22:00-07:00=200,07:00-22:00=50 (MB/s)\n";
+        }
+        return bandwidth();
+    }
+    @Command
+    public String bandwidthhost(String tag) {
+        try {
+            if (tag.trim().equalsIgnoreCase("true") || tag.trim().equalsIgnoreCase("on"))
+                BandwidthLimiter.get().setHostWide(true);
+            if (tag.trim().equalsIgnoreCase("false") || tag.trim().equalsIgnoreCase("off"))
+                BandwidthLimiter.get().setHostWide(false);
+        } catch (IOException ex) {
+            return "Can't share the bandwidth limit on this host: " + ex.getLocalizedMessage() + "\n";
+        }
+        return bandwidth();
+    }
+
+    @Command
+    public String striping(String tag) {
+        if (this.api== null || !this.api.session())
+            return "Log in first!\n";
+        
+        if (tag.trim().equalsIgnoreCase("true") || tag.trim().equalsIgnoreCase("on")) {
+            EgaServerBalancer balancer = EgaServerBalancer.start(getPrimaryDataServer(), primaryServer==2?dataServer:dataServer2);
+            if (balancer.servers().length < 2)
+                System.out.println("Only one distinct data server is configured: striping has no effect.");
+        }
+        if (tag.trim().equalsIgnoreCase("false") || tag.trim().equalsIgnoreCase("off"))
+            EgaServerBalancer.stop();
+        
+        EgaServerBalancer balancer = EgaServerBalancer.active();
+        return balancer==null?"Striping off\n":balancer.status();
+    }
+
     @Command
     public String datasets() {
         if (this.api== null || !this.api.session())
@@ -786,34 +1015,131 @@ public class EgaDemoClient {
         return sb.toString();
     }
     
+    // Request-and-stream: tickets are downloaded while the request is still being created
+    @Command
+    public String requestdownload(String type, String id, String reKey) {
+        Date dt = new Date();
+        SimpleDateFormat sdf_new = new SimpleDateFormat("yyMMdd");
+        String dateString = sdf_new.format(dt);
+        return requestdownload(type, id, reKey, type + "_" + id + "_" + dateString);
+    }
+    @Command
+    public String requestdownload(String type, String id, String reKey, String descriptor) {
+        return requestdownload(type, id, reKey, descriptor, 5);
+    }
+    @Command
+    public String requestdownload(String type, String id, String reKey, String descriptor, int threads) {
+        if (this.api== null || !this.api.session())
+            return "Log in first!\n";
+        if (type.equalsIgnoreCase("dataset") && this.legacy.contains(id))
+            return "This is a legacy dataset. Please contact the EGA helpdesk to request this data.\n";
+
+        this.api.setAlt(this.alt);
+        EgaDownloadJournal journal = null;
+        try {
+            journal = new EgaDownloadJournal(this.api.getPath(), descriptor);
+        } catch (IOException ex) {
+            System.err.println("Can't open download journal: " + ex.getLocalizedMessage());
+        }
+
+        // Step 1: Request in the background, feeding tickets into the store
+        EgaTicketStore store = EgaTicketStore.open();
+        EgaRequestStream stream = new EgaRequestStream(this.api, type, id, reKey, descriptor, "", store, journal);
+        Thread requester = new Thread(stream, "EgaRequestStream");
+        requester.setDaemon(true);
+        requester.start();
+
+        // Step 2: Parallel Download of the tickets as they arrive
+        try {
+            runDownParRetry(store, threads, false, descriptor, EgaDownloadScheduler.ORDER_REQUEST, journal);
+            requester.join();
+        } catch (IOException ex) {
+            Logger.getLogger(EgaDemoClient.class.getName()).log(Level.SEVERE, null, ex);
+            ex.printStackTrace();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (journal != null) journal.close();
+        }
+
+        return "Request " + descriptor + ": " + stream.getRequested() + " ticket(s) requested, " +
+                store.count(EgaTicketStore.DONE) + " downloaded in this run.\n";
+    }
+    
     // -------------------------------------------------------------------------
     
     @Command
     public String download(String descriptor) {
-        return download(descriptor, 5, "", true);
+        return download(descriptor, this.defaultThreads, "", this.alt);
     }
     @Command
     public String downloadx(String descriptor) {
-        return download(descriptor, 5, "", false);
+        return download(descriptor, this.defaultThreads, "", false);
+    }
+    @Command
+    public String downloadtonull(String descriptor) {
+        return downloadtonull(descriptor, this.defaultThreads);
+    }
+    @Command
+    public String downloadtonull(String descriptor, int threads) {
+        if (this.api== null || !this.api.session())
+            return "Log in first!\n";
+        
+        EgaTicket[] ds = this.api.listRequest(descriptor);
+        if (ds==null)
+            return "Unable to retrieve tickets for request " + descriptor + "\n";
+        EgaTicketStore store = new EgaTicketStore(ds.length);
+        addTickets(store, ds, null);
+        return nullbenchmark(store, threads);
+    }
+    
+    // Adds the tickets worth downloading to 'store'; returns the number skipped
+    // because the journal has them as verified
+    static int addTickets(EgaTicketStore store, EgaTicket[] ds, EgaDownloadJournal journal) {
+        int journaled = 0;
+        for (EgaTicket t : ds)
+            journaled += addTicket(store, t.getTicket(), t.getFileName(), t.getFileSize(), journal);
+        return journaled;
+    }
+    static int addTicket(EgaTicketStore store, String ticket, String name, String size, EgaDownloadJournal journal) {
+        if (ticket == null || ticket.length() <= 10) // pending file
+            return 0;
+        if (journal != null && journal.isVerified(ticket))
+            return 1;
+        store.add(ticket, name, size);
+        return 0;
     }
-    //@Command
-    //public String downloadtonull(String descriptor, int threads) {
-    //    return download(descriptor, threads, "Null", true);
-    //}
-    //@Command
-    //public String downloadtonull(String descriptor) {
-    //    return download(descriptor, 5, "Null", true);
-    //}
     @Command
     public String download(String descriptor, int threads) {
-        return download(descriptor, threads, "", true);
+        return download(descriptor, threads, "", this.alt);
     }
     @Command
     public String downloadx(String descriptor, int threads) {
         return download(descriptor, threads, "", false);
     }
     @Command
+    public String downloadauto(String descriptor) {
+        return downloadauto(descriptor, 1, 15);
+    }
+    @Command
+    public String downloadauto(String descriptor, int floor, int ceiling) {
+        return downloadauto(descriptor, floor, ceiling, EgaDownloadScheduler.ORDER_REQUEST);
+    }
+    @Command
+    public String downloadauto(String descriptor, int floor, int ceiling, String order) {
+        this.autoFloor = floor;
+        this.autoCeiling = ceiling;
+        return download(descriptor, AUTO_THREADS, "", this.alt, order);
+    }
+    @Command
+    public String download(String descriptor, int threads, String order) {
+        return download(descriptor, threads, "", this.alt, order);
+    }
+    @Command
     public String download(String descriptor, int threads, String dev_null, boolean alt) {
+        return download(descriptor, threads, dev_null, alt, EgaDownloadScheduler.ORDER_REQUEST);
+    }
+    public String download(String descriptor, int threads, String dev_null, boolean alt, String order) {
         if (this.api== null || !this.api.session())
             return "Log in first!\n";
         
@@ -855,22 +1181,33 @@ public class EgaDemoClient {
         }
         // At this point ticket(s) successfully retrieved!
         
-        // Filter out pending files (i.e. Null tickets)
-        ArrayList<EgaTicket> ds_ = new ArrayList<>();
-        for (int i=0; i<ds.length; i++) {
-            if (ds[i].getTicket()!=null && ds[i].getTicket().length()>10)
-                ds_.add(ds[i]);
+        // Journal of earlier runs of this request (not for downloads to null)
+        boolean dev_null_ = dev_null.equalsIgnoreCase("Null");
+        EgaDownloadJournal journal = null;
+        if (!dev_null_) {
+            try {
+                journal = new EgaDownloadJournal(this.api.getPath(), descriptor);
+            } catch (IOException ex) {
+                System.err.println("Can't open download journal: " + ex.getLocalizedMessage());
+            }
         }
-        System.out.println("Files to download in this request: " + ds_.size());
-        ds = ds_.toArray(new EgaTicket[ds_.size()]);
+        
+        // Filter out pending files (i.e. Null tickets), and tickets already downloaded
+        EgaTicketStore store = new EgaTicketStore(ds.length);
+        int journaled = addTickets(store, ds, journal);
+        ds = null; // only the compact store is kept during the download
+        if (journaled > 0)
+            System.out.println(journaled + " file(s) already downloaded according to " + journal.getFile().getPath() + " (delete it to download them again).");
+        System.out.println("Files to download in this request: " + store.size());
         
         // Step 2: Parallel Download; {threads} threads
         try {  // 'Pool' uses Thread Pool, otherwise my own algorithm
-            boolean dev_null_ = dev_null.equalsIgnoreCase("Null");
-            runDownParRetry(ds, threads, dev_null_, descriptor);
+            runDownParRetry(store, threads, dev_null_, descriptor, order, journal);
         } catch (IOException ex) {
             Logger.getLogger(EgaDemoClient.class.getName()).log(Level.SEVERE, null, ex);
             ex.printStackTrace();
+        } finally {
+            if (journal != null) journal.close();
         }
         
         // Step 3: Return status
@@ -896,19 +1233,19 @@ public class EgaDemoClient {
         EgaTicket[] ds = this.api.listRequest(descriptor);
 
         // Filter out pending files (i.e. Null tickets)
-        ArrayList<EgaTicket> ds_ = new ArrayList<>();
+        EgaTicketStore store = new EgaTicketStore(ds.length);
         for (int i=0; i<ds.length; i++) {
             if (ds[i].getTicket()!=null && ds[i].getTicket().length()>10)
-                ds_.add(ds[i]);
+                store.add(ds[i]);
         }
-        System.out.println("Files to download in this request: " + ds_.size());
-        ds = ds_.toArray(new EgaTicket[ds_.size()]);
+        ds = null;
+        System.out.println("Files to download in this request: " + store.size());
         
         // Step 2: Parallel Download; {threads} threads
         StringBuilder sb = new StringBuilder();
         
         try { // 'Pool' uses Thread Pool, otherwise my own algorithm
-            runDownParRetry(ds, threads, false, descriptor);
+            runDownParRetry(store, threads, false, descriptor, EgaDownloadScheduler.ORDER_REQUEST, null);
             //runDownPar(ds, threads, false);
             //runDownParPool(ds, threads, false, false);
         } catch (IOException ex) {
@@ -956,7 +1293,26 @@ public class EgaDemoClient {
         this.api.setVerbose(true); // to be used in pre-1.0.1 versions
         long time = System.currentTimeMillis();
         //String[] ds = this.api.download_ticket_url(ticket, down_name);
-        String[] ds = this.api.download(ticket, down_name, "");
+        String[] ds = null;
+        long size = -1;
+        try {
+            size = Long.parseLong(ds_[0].getFileSize());
+        } catch (NumberFormatException | NullPointerException ex) {}
+        String pth = this.api.getPath();
+        File target = new File((pth==null || pth.length()==0)?".":pth, down_name);
+        boolean limited = BandwidthLimiter.get().isActive(); // only ranged transfers can be throttled
+        if (limited || size >= EgaSegmentedDownload.MIN_FILE_SIZE || EgaSegmentedDownload.canResume(target)) {
+            try {
+                ds = new EgaSegmentedDownload(getPrimaryDataServer(), ticket, "", target, this.segments).download();
+            } catch (IOException ex) {
+                System.err.println("Segmented download error: " + ex.getLocalizedMessage());
+            }
+        }
+        if (ds == null) { // Small file, or server doesn't serve ranges
+            if (limited)
+                System.out.println("WARNING: bandwidth limit NOT applied - no ranged transfer, so the file is downloaded through the API at full speed.");
+            ds = this.api.download(ticket, down_name, "");
+        }
         time = System.currentTimeMillis() - time;
         long length = 0;
         if (ds!=null && ds.length > 0) {
@@ -984,7 +1340,6 @@ public class EgaDemoClient {
         }
         return sb.toString();
     }
-    /*
     @Command
     public String ticketdownloadtonull(String ticket) {
         if (this.api== null || !this.api.session())
@@ -993,37 +1348,40 @@ public class EgaDemoClient {
         EgaTicket[] ds_ = this.api.listTicketDetails(ticket);
         if (ds_==null || ds_.length==0)
             return "Can't find ticket " + ticket + "\n";
-        System.out.println("Downloading File: " + ds_[0].getFileName() + " to null.");
-        
-        this.api.setVerbose(true); // to be used in pre-1.0.1 versions
-        long time = System.currentTimeMillis();
-        String[] ds = this.api.download(ticket, null, null);
-        time = System.currentTimeMillis() - time;
-        long length = 0;
-        if (ds!=null && ds.length > 0) {
-            if (ds[0].equalsIgnoreCase("Ticket is Locked!"))
-                length = -10;
-            else
-                length = (Long.parseLong(ds[0]));
-        }
+        EgaTicketStore store = new EgaTicketStore(1);
+        store.add(ds_[0]);
+        return nullbenchmark(store, 1);
+    }
+    @Command
+    public String benchmarknull(int streams) {
+        return benchmarknull(streams, 1024);
+    }
+    @Command
+    public String benchmarknull(int streams, int sizeMB) {
+        if (this.api== null || !this.api.session())
+            return "Log in first!\n";
         
-        StringBuilder sb = new StringBuilder();
-        if (length == -10) {
-            sb.append("Error requesting this: ticket is locked!\n");
-        } else {
-            double rate = (length * 1.0 / 1024.0 / 1024.0) / (time * 1.0 / 1000.0);
-
-            try {
-                sb.append("Downloaded :\n");
-                sb.append("  ").append(ds_[4]).append("\n");
-                sb.append("Rate: ").append(rate).append(" MB/s\n");
-            } catch (Throwable t) {
-                sb.append("Error requesting this!\n");
-            }
-        }
-        return sb.toString();
+        // One teststream ticket per stream
+        String app = "NullBenchmark" + String.valueOf(new Random().nextInt());
+        for (int i=0; i<streams; i++)
+            request("teststream", String.valueOf(sizeMB * 1024L * 1024L + 17L), "n", app);
+        String result = downloadtonull(app, streams);
+        deleterequest(app);
+        return result;
+    }
+    
+    // Download to null; the report separates network from disk performance
+    private String nullbenchmark(EgaTicketStore store, int threads) {
+        if (store.size() == 0)
+            return "No tickets to download.\n";
+        int max = EgaExecutors.maxStreams(this.executorMode);
+        threads = threads<=max?threads:max;
+        System.out.println("Null download of " + store.size() + " file(s) on " + threads + " stream(s); data is discarded.");
+        EgaNullBenchmark benchmark = new EgaNullBenchmark(this.api, getPrimaryDataServer(), threads, this.executorMode);
+        String result = benchmark.run(store);
+        this.rate = benchmark.getRate();
+        return result;
     }
-    */
     // -------------------------------------------------------------------------
 
     @Command
@@ -1124,111 +1482,102 @@ public class EgaDemoClient {
 
     @Command
     public String testbestdownload() {
-        // Idea: run a few pre-determined scenarios, pick the best one
-        // 50MB streams; TCP 1, 3, 5, 10 streams; UDT 1, 3, 5 Streams
-        String _1 = testbandwidth(1, false, 50);
-        String _2 = testbandwidth(3, false, 50);
-        String _3 = testbandwidth(5, false, 50);
-        String _4 = testbandwidth(10, false, 50);
-        String _5 = testbandwidth(1, true, 50);
-        String _6 = testbandwidth(3, true, 50);
-        String _7 = testbandwidth(5, true, 50);
-        
-        System.out.println("\n\n\nResults:\n--------");
-        System.out.println(_1);
-        System.out.println(_2);
-        System.out.println(_3);
-        System.out.println(_4);
-        System.out.println(_5);
-        System.out.println(_6);
-        System.out.println(_7);
-        
-        return "\nTest Complete. User 'testbestlargedownload' to run this test for large file sizes.\n";
+        return autotune(50, 0);
     }
     
     @Command
     public String testbestlargedownload() {
-        // Idea: run a few pre-determined scenarios, pick the best one
-        // 50MB streams; TCP 1, 3, 5, 10 streams; UDT 1, 3, 5 Streams
-        String _1 = testbandwidth(1, false, 500);
-        String _2 = testbandwidth(3, false, 500);
-        String _3 = testbandwidth(5, false, 500);
-        String _4 = testbandwidth(10, false, 500);
-        String _5 = testbandwidth(1, true, 500);
-        String _6 = testbandwidth(3, true, 500);
-        String _7 = testbandwidth(5, true, 500);
-        
-        System.out.println("\n\n\nLarge Download Results:\n-----------------------");
-        System.out.println(_1);
-        System.out.println(_2);
-        System.out.println(_3);
-        System.out.println(_4);
-        System.out.println(_5);
-        System.out.println(_6);
-        System.out.println(_7);
-        
-        return "\nTest Complete. User 'testbestlargedownload' to run this test for large file sizes.\n";
+        return autotune(500, 0);
     }
     
     @Command
-    public String testbandwidth() {
-        return testbandwidth(3);
+    public String autotune() {
+        return autotune(64, 0);
     }
     @Command
-    public String testbandwidth(int threads) {
+    public String autotune(int sizeMB) {
+        return autotune(sizeMB, 0);
+    }
+    // Search streams, transport and read size on teststream tickets of {sizeMB}
+    // per stream, transferring at most {maxGB} (0: as much as the whole search
+    // needs); the best setting is applied
+    @Command
+    public String autotune(int sizeMB, int maxGB) {
         if (this.api== null || !this.api.session())
             return "Log in first!\n";
-
-        // Step 1: Create 3 virtual tickets
-        Random rnd = new Random();
-        String app = "SpeedTestRequest" + String.valueOf(rnd.nextInt());
-        long sze = 0;
-        for (int i=0; i<threads; i++) {
-            request("teststream", "1073725440", "n", app);
-            sze += 1073725440;
-        }
-
-        // Step 2: Download to Null
-        long time = System.currentTimeMillis();
-        //String x = downloadtonull(app, threads);
-        String x = download(app, threads);
-        time = System.currentTimeMillis()-time;
-        this.rate = (sze/1024.0/1024.0) / (time/1000.0); // MB / s
         
-        // Step 3: Parallel Download; {threds} threads
-        StringBuilder sb = new StringBuilder();
-        sb.append("Estimated Transfer Rate: " + this.rate + " MB/s");
+        EgaAutoTuner.Tickets tickets = new EgaAutoTuner.Tickets() {
+            @Override
+            public EgaTicketStore request(int count, long size, String label) {
+                for (int i=0; i<count; i++)
+                    EgaDemoClient.this.request("teststream", String.valueOf(size + 17L), "n", label);
+                EgaTicket[] ds = EgaDemoClient.this.api.listRequest(label);
+                EgaTicketStore store = new EgaTicketStore(ds==null?0:ds.length);
+                if (ds != null)
+                    addTickets(store, ds, null);
+                return store;
+            }
+            @Override
+            public void delete(String label) {
+                EgaDemoClient.this.deleterequest(label);
+            }
+        };
+        boolean udt = this.api.getUdt();
+        int readSize = EgaSegmentedDownload.getReadSize();
+        EgaAutoTuner tuner = new EgaAutoTuner(this.api, getPrimaryDataServer(), this.executorMode, tickets,
+                sizeMB * 1024L * 1024L, maxGB * 1024L * 1024L * 1024L);
+        EgaAutoTuner.Config best = tuner.tune(this.calibratedThreads);
+        StringBuilder sb = new StringBuilder(tuner.report(best));
+        if (best == null) { // leave the session as it was
+            this.api.setUdt(udt);
+            this.api.setAlt(this.alt);
+            EgaSegmentedDownload.setReadSize(readSize);
+            return sb.toString();
+        }
         
+        // Apply the winner to this session
+        this.api.setUdt(best.mode.equals(EgaAutoTuner.UDT));
+        this.alt = !best.mode.equals(EgaAutoTuner.NETTY) && !best.mode.equals(EgaAutoTuner.UDT);
+        this.api.setAlt(this.alt);
+        EgaSegmentedDownload.setReadSize(best.readSize);
+        this.defaultThreads = best.streams;
+        this.calibratedThreads = best.streams;
+        this.rate = best.mean();
+        sb.append("Applied: ").append(best.streams).append(" stream(s) by default, UDT ").append(this.api.getUdt()?"on":"off")
+          .append(", ").append(this.alt?"HttpURLConnection":"Netty").append(" transfers");
+        if (best.mode.equals(EgaAutoTuner.RANGED))
+            sb.append(", ").append(best.readSize / 1024).append(" KB reads for ranged downloads (see 'segments')");
+        sb.append(".\n");
         return sb.toString();
     }
-    private String testbandwidth(int threads, boolean udt, long sizeMB) {
+    
+    @Command
+    public String testbandwidth() {
+        return testbandwidth(3);
+    }
+    @Command
+    public String testbandwidth(int threads) {
         if (this.api== null || !this.api.session())
             return "Log in first!\n";
 
-        long size = sizeMB * 1024L * 1024L; // Turn MB into bytes
-        
         // Step 1: Create 3 virtual tickets
         Random rnd = new Random();
         String app = "SpeedTestRequest" + String.valueOf(rnd.nextInt());
         long sze = 0;
         for (int i=0; i<threads; i++) {
-            request("teststream", String.valueOf(size+17L), "n", app);
-            sze += (size+17L);
+            request("teststream", "1073725440", "n", app);
+            sze += 1073725440;
         }
 
         // Step 2: Download to Null
-        boolean saved = this.api.getUdt();
-        this.api.setUdt(udt);
         long time = System.currentTimeMillis();
-        //String x = downloadtonull(app, threads);
-        String x = download(app, threads);
+        String x = downloadtonull(app, threads);
         time = System.currentTimeMillis()-time;
-        this.api.setUdt(saved);
         this.rate = (sze/1024.0/1024.0) / (time/1000.0); // MB / s
         
         // Step 3: Parallel Download; {threds} threads
         StringBuilder sb = new StringBuilder();
-        sb.append("Estimated Max. Transfer Rate for " + (udt?"UDT":"TCP") + " and " + threads + " parallel streams: " + this.rate + " MB/s");
+        sb.append("Estimated Transfer Rate: " + this.rate + " MB/s");
         
         return sb.toString();
     }
@@ -1254,28 +1603,27 @@ public class EgaDemoClient {
     @Command
     public String decrypt(String file, String key, String path, boolean delete) {
         
-        ArrayList<String> files = new ArrayList<>();
-        if(file.contains(",")) { // Handle multiple files: comma-separator
-            StringTokenizer token = new StringTokenizer(file, ",");
-            while (token.hasMoreElements()) {
-                String fle = token.nextToken();
-                if (  (new File(fle)).exists()  )
-                    files.add(fle);
-                else
-                    System.out.println("Specified file '" + fle + "' does not exist or can't be found. Skipping this file.");
-            }
-        } else {
-            if (  (new File(file)).exists()  )
-                files.add(file);
-            else
-                System.out.println("Specified file '" + file + "' does not exist or can't be found. Skipping this file.");
-        }
+        // Files: comma-separated list, directory (all .cip files), or glob
+        ArrayList<String> files = EgaDecryptPool.expand(file);
 
         String pth = ".";
-        if (path!=null)
+        if (path!=null && path.length()>0)
             pth = path;
 
-        if (files.size()>0) {
+        if (files.size()>1 && this.decryptWorkers>1) { // Parallel: one file per worker
+            System.out.println("Decrypting " + files.size() + " file(s) with " + Math.min(this.decryptWorkers, files.size()) + " worker(s).");
+            EgaDecryptPool pool = new EgaDecryptPool(this.api, key, pth, Math.min(this.decryptWorkers, files.size()), delete, EgaDecryptPool.UNBOUNDED);
+            try {
+                for (String f : files)
+                    pool.submit(f);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            System.out.println(pool.finish());
+        } else if (files.size()==1 && this.decryptWorkers>1 && new File(files.get(0)).length() >= EgaChunkedDecrypt.MIN_FILE_SIZE) {
+            // One large file: split into chunks, decrypted on all workers
+            System.out.println(new EgaChunkedDecrypt(this.api, files.get(0), key, pth, this.decryptWorkers, delete).decrypt());
+        } else if (files.size()>0) {
             System.out.println("Decrypting " + files.size() + " file(s).");
             this.api.decrypt(key, pth, files, 128, delete);
         } else {
@@ -1288,42 +1636,16 @@ public class EgaDemoClient {
     // -------------------------------------------------------------------------
     // Derived (Advanced) Functionality
     
-    // -- Download Retries
-    private void runDownParRetry(EgaTicket[] tickets, int numThreads, boolean dev_null, String descriptor) throws IOException {
-        EgaTicket[] tickets_ = new EgaTicket[tickets.length];
-        System.arraycopy(tickets, 0, tickets_, 0, tickets.length);
-    
-        int numTickets = 0, numTicketsPost = 0, count = 0;
-        do {
-            numTickets = tickets_.length;
-            
-            ArrayList<EgaTicket> t__ = new ArrayList<>();
-            for (EgaTicket oneTicket:tickets_)
-                t__.add(oneTicket);
-            ArrayList<String> runDownParPool = runDownParPool(t__, numThreads, dev_null); // Returns list of successful tickets
-            
-            EgaTicket[] post_download_tickets_ = null; // this.api.listRequest(descriptor);
-            numTicketsPost = (tickets_.length - runDownParPool.size());
-            if (numTicketsPost > 0) {
-                int index = 0;
-                post_download_tickets_ = new EgaTicket[numTicketsPost];
-                for (int fi=0; fi<tickets_.length; fi++) {
-                    if (!runDownParPool.contains(tickets_[fi].getTicket()))
-                        post_download_tickets_[index++] = tickets_[fi];
-                }
-            }
-            if (post_download_tickets_ != null) { // Reset loop - only attempt failed tickets
-                if (numTicketsPost > 0) {
-                    tickets_ = new EgaTicket[numTicketsPost];
-                    System.arraycopy(post_download_tickets_, 0, tickets_, 0, numTicketsPost);
-                }
-            } else {
-                System.out.println("Post-Download: No outstanding Tickets");
-            }
-
-            // Repeat if there are still tickets in the request, and retry-count < 3
-        } while (numTicketsPost > 0 && numTickets!=numTicketsPost && count++ < 3);
-        
+    // -- Download Retries: failed tickets are re-queued by the scheduler as
+    //    soon as they fail, so there is no outer retry pass any more
+    private void runDownParRetry(EgaTicketStore tickets, int numThreads, boolean dev_null, String descriptor, String order, EgaDownloadJournal journal) throws IOException {
+        int runDownParPool = runDownParPool(tickets, numThreads, dev_null, order, journal); // Returns number of successful tickets
+        
+        int numTicketsPost = (tickets.size() - runDownParPool);
+        if (numTicketsPost > 0)
+            System.out.println("Post-Download: " + numTicketsPost + " outstanding Tickets");
+        else
+            System.out.println("Post-Download: No outstanding Tickets");
     }
     
     // -- Parallel Downloads (my own thread pool algorithm)
@@ -1409,71 +1731,36 @@ public class EgaDemoClient {
         System.out.println("Download Attempts Completed.");
     }
     */
-    // Java Thread Pool executor, taking care of executing all download tickets
-    private ArrayList<String> runDownParPool(ArrayList<EgaTicket> t__, int numThreads, boolean dev_null) throws IOException {
-        numThreads = numThreads<=15?numThreads:15;
-        System.out.println("Start Download Process: " + numThreads + " (max:15) parallel threads");
-        ExecutorService executorService = Executors.newFixedThreadPool(numThreads);        
-        ArrayList<EgaTicket> t = (ArrayList<EgaTicket>) t__.clone(); // Work on a copy of the list
-        ArrayList<String> result = new ArrayList<>();
-        
-        int countdown = 5;
-
-        Future[] f = null;        
-        TimerTask timerTask = new MyTimerTask(f);
-        Timer  theTimer = new Timer(true);
-        theTimer.scheduleAtFixedRate(timerTask, 30000, 30000);
-        
-        while (countdown-- > 0 && t.size() > 0) { // try up to 5 times: download all/failed tickets
-            ArrayList<EgaTicket> t_ = new ArrayList<>(); // Collect unsucessful downloads
-            System.out.println("Iteration " + (5-countdown) + ": " + t.size() + " files.");
-            
-            f = new Future[t.size()]; // ALL tickets
-            ((MyTimerTask)timerTask).setF(f); // Does this work??
-            for (int i=0; i<t.size(); i++) { // Process all tickets in parallel
-                if (t.get(i).getTicket() == null || t.get(i).getFileName() == null) {
-                    System.out.println("Download Ticket ERROR");
-                } else {
-                    //Callable worker = new EgaDemoClient_DownloadCallable(t.get(i).getTicket(), i, t.size(), this.api, dev_null, t.get(i).getFileName());
-                    Callable worker = new EgaDemoClient_Download(t.get(i).getTicket(), i, t.size(), this.api, dev_null, t.get(i).getFileName());
-                    f[i] = executorService.submit(worker); // Submit downloads in sequence
-                }
-            }
-            // The queue is now set up - all requests are submitted!            
-    
-            // Results are printed in sequence, even if the download happens out-of-order
-            for (int i=0; i<f.length; i++) { // get result for each download attempt, in sequence
-                try {
-                    String stat = f[i].get().toString(); // Error...
-                    if (stat.startsWith("Download Failed") || stat.equalsIgnoreCase("Download Failed")) { // add failed attempts to new list
-                        t_.add(t.get(i));
-                    } else {// otherwise, print result
-                        System.out.println(stat);
-                        result.add(t.get(i).getTicket()); // Add completed ticket
-                    }
-                } catch (InterruptedException | ExecutionException ex) {
-                    System.err.println("["+i+"] " + ex.getLocalizedMessage());
-                    t_.add(t.get(i));
-                } catch (Throwable ex) {
-                    // Don't re-try ... for now
-                    System.err.println("Throwable error: " + ex.getLocalizedMessage());
-                }
-            }
-
-            System.out.println("Iteration " + (5 - countdown) + " Done! (FAILED: " + t_.size() + "; SUCCEEDED: " + (t.size()-t_.size()) + ")");
-            t = t_; // replace original list with list of failed downloads
+    // Completion-order scheduler, taking care of executing all download tickets
+    private int runDownParPool(EgaTicketStore t__, int numThreads, boolean dev_null, String order, EgaDownloadJournal journal) throws IOException {
+        EgaDownloadScheduler scheduler;
+        int max = EgaExecutors.maxStreams(this.executorMode); // 15, or 1000 with virtual threads
+        if (numThreads == AUTO_THREADS) {
+            int ceiling = this.autoCeiling<=max?this.autoCeiling:max;
+            System.out.println("Start Download Process: adaptive, " + this.autoFloor + "-" + ceiling + " (max:" + max + ") parallel threads");
+            scheduler = new EgaDownloadScheduler(this.api, this.calibratedThreads, dev_null, order);
+            scheduler.setController(new EgaConcurrencyController(this.calibratedThreads, this.autoFloor, ceiling));
+        } else {
+            numThreads = numThreads<=max?numThreads:max;
+            System.out.println("Start Download Process: " + numThreads + " (max:" + max + ") parallel threads");
+            scheduler = new EgaDownloadScheduler(this.api, numThreads, dev_null, order);
         }
-        
-        if (theTimer!=null) theTimer.cancel();
-        if (timerTask!=null) timerTask.cancel();
-        theTimer = null;
-        executorService.shutdown(); // Done - shut down executor
-        while (!executorService.isTerminated()) {
-            try {Thread.sleep(1000);} catch (InterruptedException ex) {
-                ex.printStackTrace();
-            }
+        scheduler.setExecutorMode(this.executorMode);
+        scheduler.setSegments(this.segments);
+        scheduler.setJournal(journal);
+        if (!dev_null)
+            scheduler.setDecryptKey(this.onTheFlyKey);
+        EgaDecryptPool pipeline = null;
+        if (this.pipelineKey != null && !dev_null) {
+            pipeline = new EgaDecryptPool(this.api, this.pipelineKey, this.api.getPath(), this.decryptWorkers, true, EgaDecryptPool.PIPELINE_BACKLOG);
+            scheduler.setDecryptPool(pipeline);
         }
-        System.out.println("Download Attempt Completed. " + result.size() + " of " + t__.size() + " tickets downloaded successfully.");
+        int result = scheduler.run(t__);
+        if (numThreads == AUTO_THREADS) // Remember the setting the controller arrived at
+            this.calibratedThreads = scheduler.getNumThreads();
+        System.out.println("Download Attempt Completed. " + result + " of " + t__.size() + " tickets downloaded successfully.");
+        if (pipeline != null)
+            System.out.println(pipeline.finish());
         
         return result;
     }
@@ -1508,13 +1795,14 @@ public class EgaDemoClient {
         options.addOption("rfd", "requestbydatasetid", true, "request files by dataset ID");
         //options.addOption("rt", "requestteststream", true, "request test stream");
         options.addOption("re", "reencryptionkey", true, "reencryption key");
+        options.addOption("rdl", "requestanddownload", false, "with -rf/-rfd: download each file as soon as it is requested");
         
         // Download Ticket
         // Download File/Teststream/Packet/Dataset 
         options.addOption("dt", "downloadticket", true, "download ticket");
         options.addOption("dr", "downloadrequest", true, "download request");
-        //options.addOption("dtn", "downloadtickettonull", true, "download ticket to null");
-        //options.addOption("drn", "downloadrequesttonull", true, "download request to null");
+        options.addOption("dtn", "downloadtickettonull", true, "download ticket to null");
+        options.addOption("drn", "downloadrequesttonull", true, "download request to null");
         
         // Delete
         options.addOption("delr","deleterequest",  true, "delete a request");
@@ -1529,9 +1817,15 @@ public class EgaDemoClient {
         options.addOption(opt);
         //options.addOption("dc", "decrypt", true, "decrypt file(s)");
         options.addOption("dck", "decryptionkey", true, "decryption key");
+        options.addOption("dcp", "decryptpipeline", false, "decrypt downloaded files while the download runs (key: -dck)");
+        options.addOption("dcw", "decryptworkers", true, "number of parallel decrypt workers");
+        options.addOption("dod", "decryptondownload", false, "decrypt files while downloading, write only plaintext (key: -dck)");
 
         // Options
-        options.addOption("nt", "numthreads", true, "number of threads");
+        options.addOption("nt", "numthreads", true, "number of threads, or 'auto' for adaptive");
+        options.addOption("ntmin", true, "minimum number of threads with '-nt auto'");
+        options.addOption("ntmax", true, "maximum number of threads with '-nt auto'");
+        options.addOption("ord", "order", true, "download order: 'request' (default) or 'size' (largest first, plus small-file lane)");
         options.addOption("path", true, "set path");
         options.addOption("label", true, "set label for downoad requests");
         options.addOption("crg", false, "download from CRG");
@@ -1540,6 +1834,16 @@ public class EgaDemoClient {
         options.addOption("usedb", false, "turn on local database cache");
         //options.addOption("updatedb", false, "update local database cache");
         options.addOption("udt", false, "pick UDT for downloads");
+        options.addOption("seg", "segments", true, "parallel connections per large file");
+        options.addOption("exec", "executor", true, "download executor: 'pool' (default) or 'virtual'");
+        options.addOption("bw", "bandwidth", true, "bandwidth limit in MB/s for all streams");
+        options.addOption("bp", "bufferpool", true, "memory budget in MB for transfer buffers");
+        options.addOption("at", "autotune", false, "find and apply the best download settings before downloading");
+        options.addOption("dio", "directio", false, "write downloads with direct I/O (bypass the page cache)");
+        options.addOption("sync", "syncpolicy", true, "fsync policy for downloads: 'file', 'group[:seconds]' (default) or 'none'");
+        options.addOption("bws", "bandwidthschedule", true, "time-of-day bandwidth limits, e.g. 22:00-07:00=200,07:00-22:00=50");
+        options.addOption("bwhost", false, "share the bandwidth limit with all clients on this host");
+        options.addOption("stripe", false, "spread ranged downloads over primary and backup data servers");
 
         // Other
         //options.addOption("overview", false, "Overview of current requests");
@@ -1569,8 +1873,22 @@ public class EgaDemoClient {
             }
             
             int threads = 3;
-            if (cmd.hasOption("nt")) // Number of parallel threads
-                threads = Integer.parseInt(cmd.getOptionValue("nt").trim());
+            boolean auto = false;
+            if (cmd.hasOption("nt")) { // Number of parallel threads
+                if (cmd.getOptionValue("nt").trim().equalsIgnoreCase("auto"))
+                    auto = true;
+                else
+                    threads = Integer.parseInt(cmd.getOptionValue("nt").trim());
+            }
+            int ntmin = 1, ntmax = 15;
+            if (cmd.hasOption("ntmin"))
+                ntmin = Integer.parseInt(cmd.getOptionValue("ntmin").trim());
+            if (cmd.hasOption("ntmax"))
+                ntmax = Integer.parseInt(cmd.getOptionValue("ntmax").trim());
+
+            String order = EgaDownloadScheduler.ORDER_REQUEST;
+            if (cmd.hasOption("ord")) // Order in which tickets are downloaded
+                order = cmd.getOptionValue("ord").trim();
 
             String label = "";
             if (cmd.hasOption("label")) // Number of parallel threads
@@ -1589,9 +1907,16 @@ public class EgaDemoClient {
                 if (cmd.hasOption("path"))
                     pth = cmd.getOptionValue("path");
                 
+                if (cmd.hasOption("dcw"))
+                    System.out.println(shell.decryptworkers(Integer.parseInt(cmd.getOptionValue("dcw").trim())));
+                
+                // All files in one call, so they are decrypted in parallel
+                StringBuilder all = new StringBuilder();
                 for (String file1 : file) {
-                    shell.decrypt(file1, key, pth);
-                }                
+                    if (all.length() > 0) all.append(",");
+                    all.append(file1);
+                }
+                shell.decrypt(all.toString(), key, pth);
                 return; // End after decryption
             }
             
@@ -1623,7 +1948,9 @@ public class EgaDemoClient {
                 System.out.println(shell.requesttickets(cmd.getOptionValue("lrt")));
             
             // Request options - just print resulting tickets to screen
-            if (cmd.hasOption("re")) {
+            // (request-and-download is run with the download options, below)
+            boolean stream = cmd.hasOption("rdl") && cmd.hasOption("re") && (cmd.hasOption("rf") || cmd.hasOption("rfd"));
+            if (cmd.hasOption("re") && !stream) {
                 String reKey = cmd.getOptionValue("re");
 
                 // Request
@@ -1647,16 +1974,60 @@ public class EgaDemoClient {
             // Download options
             if (cmd.hasOption("path"))
                 System.out.println("Path set: " + shell.path(cmd.getOptionValue("path")));
+            if (cmd.hasOption("bwhost"))
+                System.out.println(shell.bandwidthhost("on"));
+            if (cmd.hasOption("bw"))
+                System.out.println(shell.bandwidth(Integer.parseInt(cmd.getOptionValue("bw").trim())));
+            if (cmd.hasOption("bp"))
+                System.out.println(shell.bufferpool(Integer.parseInt(cmd.getOptionValue("bp").trim())));
+            if (cmd.hasOption("dio"))
+                System.out.println(shell.directio("on"));
+            if (cmd.hasOption("sync")) {
+                String[] sync = cmd.getOptionValue("sync").trim().split(":");
+                System.out.println(shell.syncpolicy(sync[0], sync.length>1?Integer.parseInt(sync[1]):0));
+            }
+            if (cmd.hasOption("bws"))
+                System.out.println(shell.bandwidthschedule(cmd.getOptionValue("bws").trim()));
+            if (cmd.hasOption("stripe"))
+                System.out.println(shell.striping("on"));
+            if (cmd.hasOption("exec"))
+                System.out.println(shell.executor(cmd.getOptionValue("exec")));
+            if (cmd.hasOption("seg"))
+                System.out.println(shell.segments(Integer.parseInt(cmd.getOptionValue("seg").trim())));
+            if (cmd.hasOption("at")) {
+                System.out.println(shell.autotune());
+                if (!cmd.hasOption("nt")) threads = shell.defaultThreads;
+            }
+            if (cmd.hasOption("dod") && cmd.hasOption("dck"))
+                System.out.println(shell.decryptdownload(cmd.getOptionValue("dck")));
+            if (cmd.hasOption("dcp") && cmd.hasOption("dck"))
+                System.out.println(cmd.hasOption("dcw")?
+                        shell.decryptpipeline(cmd.getOptionValue("dck"), Integer.parseInt(cmd.getOptionValue("dcw").trim())):
+                        shell.decryptpipeline(cmd.getOptionValue("dck")));
+            
+            // Request and download at the same time
+            if (stream) {
+                String type = cmd.hasOption("rfd")?"dataset":"file";
+                String id = cmd.getOptionValue(cmd.hasOption("rfd")?"rfd":"rf");
+                if (auto) {
+                    shell.autoFloor = ntmin;
+                    shell.autoCeiling = ntmax;
+                }
+                String descriptor = label.length()>0?label:(type + "_" + id + "_" + new SimpleDateFormat("yyMMdd").format(new Date()));
+                System.out.println(shell.requestdownload(type, id, cmd.getOptionValue("re"), descriptor, auto?AUTO_THREADS:threads));
+            }
             
             // Download by tickets
             if (cmd.hasOption("dt"))
                 System.out.println(shell.ticketdownload(cmd.getOptionValue("dt")));
-            if (cmd.hasOption("dr"))
-                System.out.println(shell.download(cmd.getOptionValue("dr"), threads));
-            //if (cmd.hasOption("dtn"))
-            //    System.out.println(shell.ticketdownloadtonull(cmd.getOptionValue("dtn")));
-            //if (cmd.hasOption("drn"))
-            //    System.out.println(shell.downloadtonull(cmd.getOptionValue("drn"), threads));
+            if (cmd.hasOption("dr") && auto)
+                System.out.println(shell.downloadauto(cmd.getOptionValue("dr"), ntmin, ntmax, order));
+            else if (cmd.hasOption("dr"))
+                System.out.println(shell.download(cmd.getOptionValue("dr"), threads, order));
+            if (cmd.hasOption("dtn"))
+                System.out.println(shell.ticketdownloadtonull(cmd.getOptionValue("dtn")));
+            if (cmd.hasOption("drn"))
+                System.out.println(shell.downloadtonull(cmd.getOptionValue("drn"), threads));
 
             // Tests
             //if (cmd.hasOption("overview"))
@@ -1762,6 +2133,8 @@ public class EgaDemoClient {
             EgaDemoClient.dataServer = args[2];
             EgaDemoClient.dataServer2 = args[2];
             EgaDemoClient.infoServer = args[1];
+            if (args.length > 3 && args[3].equalsIgnoreCase("http")) // e.g. EgaLocalServer
+                EgaDemoClient.ssl = false;
             System.out.println("Entered Local Mode!");
             System.out.println("Info = " + EgaDemoClient.infoServer);
             System.out.println("Data = " + EgaDemoClient.dataServer);
@@ -1856,9 +2229,15 @@ public class EgaDemoClient {
     public static String getDataServer() {
         return dataServer;
     }
+    public static String getPrimaryDataServer() {
+        return primaryServer==2?dataServer2:dataServer;
+    }
     public static String getBackupDataServer() {
         return dataServer2;
     }    
+    public static boolean getSsl() {
+        return ssl;
+    }
     public static String getDataServerTest() {
         return dataServerTest;
     }
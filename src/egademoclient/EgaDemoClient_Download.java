@@ -18,6 +18,7 @@ package egademoclient;
 import java.io.File;
 import java.util.concurrent.Callable;
 import uk.ac.embl.ebi.ega.egadbapiwrapper.EgaDBAPIWrapper;
+import utils.BandwidthLimiter;
 
 /**
  *
@@ -28,7 +29,7 @@ import uk.ac.embl.ebi.ega.egadbapiwrapper.EgaDBAPIWrapper;
  * multiple downloads to be initiated and submitted to an Executor service, for 
  * efficient parallel download of large dataset requests.
  */
-public class EgaDemoClient_Download extends Thread implements Callable {
+public class EgaDemoClient_Download extends Thread implements Callable<Object> {
 
     private final String ticket, down_name, org;
     private final int index, tot;
@@ -37,6 +38,19 @@ public class EgaDemoClient_Download extends Thread implements Callable {
     
     private String result;
     private boolean success = false;
+    private boolean locked = false;
+    private boolean verified = false;
+    private boolean ranged = false;
+    private EgaCircuitBreaker breaker = null;
+    private boolean probe = false;
+    private volatile String target = null;
+    private String file = null;
+    private String decryptKey = null; // decrypt .cip files on the fly
+    private volatile long bytes = 0;
+    private int segments = 1;
+    private long size = -1;
+    private String executorMode = EgaExecutors.POOL;
+    private volatile EgaSegmentedDownload segmented = null;
     
     public EgaDemoClient_Download(String ticket, int index, int tot, EgaDBAPIWrapper api, boolean dev_null, String down_name) {
         if (ticket.contains("?org=")) {
@@ -58,25 +72,92 @@ public class EgaDemoClient_Download extends Thread implements Callable {
         this.result = "";
     }
     
-    @Override
-    public Object call() {
-        String down_name_ = this.down_name;
+    // Files of at least EgaSegmentedDownload.MIN_FILE_SIZE are fetched in resumable
+    // byte ranges, across {segments} connections
+    public void setSegments(int segments, long size) {
+        this.segments = segments;
+        this.size = size;
+    }
+    
+    // Executor mode for the connections of a segmented download
+    public void setExecutorMode(String executorMode) {
+        this.executorMode = executorMode;
+    }
+    
+    // Write only the plaintext of .cip files (ranged download, decrypted as it arrives)
+    public void setDecryptKey(String decryptKey) {
+        this.decryptKey = decryptKey;
+    }
+    
+    // Ranged downloads record each request in the breaker themselves; 'probe':
+    // this download is the half-open probe for the primary data server
+    public void setBreaker(EgaCircuitBreaker breaker, boolean probe) {
+        this.breaker = breaker;
+        this.probe = probe;
+    }
+    
+    // Local file name for a ticket's file name: .gpg/.cip to match the
+    // encryption (gpg with an org key, cip otherwise), no directories
+    static String targetName(String down_name, String org) {
+        String down_name_ = down_name;
         if (down_name_ != null && down_name_.endsWith("gpg")) {
-            if (this.org.length()==0)
+            if (org.length()==0)
                 down_name_ = down_name_.substring(0, down_name_.length()-3) + "cip";
         } else if (down_name_ != null && down_name_.endsWith("cip")) {
-            if (this.org.length()>0)
+            if (org.length()>0)
                 down_name_ = down_name_.substring(0, down_name_.length()-3) + "gpg";
         }
         if (down_name_ != null)
             down_name_ = down_name_.replaceAll("/", "_");
+        return down_name_;
+    }
+    
+    @Override
+    public Object call() {
+        String down_name_ = targetName(this.down_name, this.org);
+        boolean decrypt = this.decryptKey != null && !this.dev_null && down_name_ != null && down_name_.endsWith(".cip");
+        this.target = decrypt?down_name_.substring(0, down_name_.length()-4):down_name_;
         
         System.out.println("Starting download: " + this.down_name + "  (" + this.index + "/" + this.tot + ")");
         
         long time = System.currentTimeMillis();
         this.success = false;
         //String[] ds = this.dev_null?this.api.download_ticket_null_url(ticket):this.api.download_ticket_url(ticket, down_name_);
-        String[] ds = this.api.download(ticket, down_name_, org);
+        String[] ds = null;
+        boolean error = false;
+        String pth = this.api.getPath();
+        File target_ = new File((pth==null || pth.length()==0)?".":pth, this.target==null?"":this.target);
+        // Large files, interrupted downloads, on-the-fly decryption, and everything while a
+        // bandwidth limit is set go through ranged requests (resumable, throttled)
+        boolean limited = BandwidthLimiter.get().isActive();
+        if (!this.dev_null && down_name_ != null && (decrypt || limited || this.size >= EgaSegmentedDownload.MIN_FILE_SIZE || EgaSegmentedDownload.canResume(target_))) {
+            this.segmented = new EgaSegmentedDownload(EgaDemoClient.getPrimaryDataServer(), this.ticket, this.org, target_, this.segments);
+            this.segmented.setExecutorMode(this.executorMode);
+            this.segmented.setBreaker(this.breaker, this.probe);
+            try {
+                if (decrypt)
+                    this.segmented.setDecrypt(this.api, this.decryptKey);
+                ds = this.segmented.download(); // null: server doesn't serve ranges
+            } catch (Throwable t) {
+                System.err.println("Segmented download error: " + t.getLocalizedMessage());
+                error = true;
+            }
+            if (ds == null) this.segmented = null;
+        }
+        this.ranged = ds != null;
+        if (ds == null && decrypt) {
+            // The API would write the ciphertext to disk: fail the file instead (re-tried after an error,
+            // skipped if the server has no usable ranged transfer for it)
+            System.out.println("On-the-fly decryption not possible for " + down_name_ + " (no ranged transfer) - not downloaded, " +
+                    "as this mode never writes ciphertext. Use 'decryptpipeline' to decrypt after the download instead.");
+            ds = new String[]{"On-the-fly decryption not possible", "Failed", String.valueOf(!error)};
+        } else if (ds == null) {
+            if (limited)
+                System.out.println("WARNING: bandwidth limit NOT applied to " + this.down_name + " - no ranged transfer, so it is downloaded through the API at full speed.");
+            ds = this.api.download(ticket, down_name_, org);
+            if (!this.dev_null && ds != null && ds.length > 1 && ds[1].equalsIgnoreCase("Success"))
+                EgaFileSink.complete(new File(ds[0])); // written by the API: apply the sync policy now
+        }
         time = System.currentTimeMillis() - time;
         long length = 0;
         if (ds!=null && ds.length > 0) {
@@ -87,6 +168,12 @@ public class EgaDemoClient_Download extends Thread implements Callable {
         }
         
         this.success = (length > 0 || (ds!=null && ds.length>1 && ds[1].equalsIgnoreCase("Success")));
+        if (length > 0) this.bytes = length;
+        if (this.success && !this.dev_null) {
+            this.file = ds[0];
+            // Ranged: compared with X-Ega-MD5 before the rename; the API checks the MD5 of its own downloads
+            this.verified = !this.ranged || this.segmented.isVerified();
+        }
         if (success) {
             double rate = (length * 1.0 / 1024.0 / 1024.0) / (time * 1.0 / 1000.0);
 
@@ -104,6 +191,7 @@ public class EgaDemoClient_Download extends Thread implements Callable {
             this.result = sb.toString();
         } else {
             this.result = "Download Failed: " + this.down_name + "  " + this.ticket;
+            this.locked = (length==-10);
             if ( (length==-10) || ((ds!=null && ds.length > 2 && ds[2].equalsIgnoreCase("true")))) {
                 System.out.println("Skipping this ticket!");
                 this.result += "   SKIP";
@@ -130,11 +218,44 @@ public class EgaDemoClient_Download extends Thread implements Callable {
         return this.success;
     }
     
+    // Transferred with ranged requests (their outcomes are in the breaker already)
+    public boolean getRanged() {
+        return this.ranged;
+    }
+    
+    // Saved, and its checksum compared with the server's
+    public boolean getVerified() {
+        return this.verified;
+    }
+    
+    // 'Ticket is Locked!' - as opposed to the server asking to skip the ticket
+    public boolean getLocked() {
+        return this.locked;
+    }
+    
     public String getTicket() {
         return this.ticket;
     }
     
+    // Path of the downloaded file (null unless successfully saved)
+    public String getFile() {
+        return this.file;
+    }
+    
     public String getDownName() {
         return this.down_name;
     }
+    
+    // Bytes received so far - while the download is running this is the size
+    // of the partial '.egastream' file (best effort; 0 if it can't be found)
+    public long getBytes() {
+        EgaSegmentedDownload seg = this.segmented;
+        if (this.bytes == 0 && seg != null)
+            return seg.getBytes();
+        if (this.bytes > 0 || this.target == null || this.dev_null)
+            return this.bytes;
+        String pth = this.api.getPath();
+        File partial = new File((pth==null || pth.length()==0)?".":pth, this.target + ".egastream");
+        return partial.length();
+    }
 }
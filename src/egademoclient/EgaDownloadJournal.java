@@ -0,0 +1,143 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egademoclient;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ *
+ * @author asenf
+ *
+ * Append-only journal of a request download, kept next to the downloaded files
+ * as '{label}.egajournal'. One line per event:
+ *     {S|C|V|F} {ticket} {attempt}
+ * for started, completed, verified and failed tickets (a ticket counts as done
+ * if its last V/F line is a V - a failure after verification, e.g. of the
+ * decryption, makes it download again). Lines are buffered and
+ * flushed + fsync'ed together (at most every SYNC_INTERVAL ms), so a crash
+ * loses at most the last second of events - which only means re-checking
+ * those tickets. A torn last line is ignored when the journal is read back.
+ */
+public class EgaDownloadJournal {
+
+    public static final char STARTED = 'S', COMPLETED = 'C', VERIFIED = 'V', FAILED = 'F';
+    private static final long SYNC_INTERVAL = 1000; // ms
+
+    private final File file;
+    private final HashSet<String> verified = new HashSet<>();
+    private FileOutputStream fos;
+    private BufferedWriter out;
+    private boolean dirty = false;
+    private final Timer syncTimer;
+
+    public EgaDownloadJournal(String path, String label) throws IOException {
+        this.file = new File((path==null || path.length()==0)?".":path, label.replaceAll("[/\\\\]", "_") + ".egajournal");
+
+        // Rebuild state: a single sequential read, one set lookup per line
+        if (this.file.exists()) {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(this.file), StandardCharsets.UTF_8), 1024*1024)) {
+                String line;
+                while ( (line = in.readLine()) != null ) {
+                    if (line.length() < 3 || line.charAt(1) != ' ') continue;
+                    int end = line.indexOf(' ', 2);
+                    if (end < 0) continue; // torn line
+                    String ticket = line.substring(2, end);
+                    if (line.charAt(0) == VERIFIED)
+                        this.verified.add(ticket);
+                    else if (line.charAt(0) == FAILED)
+                        this.verified.remove(ticket);
+                }
+            }
+        }
+
+        this.fos = new FileOutputStream(this.file, true);
+        this.out = new BufferedWriter(new OutputStreamWriter(this.fos, StandardCharsets.UTF_8), 64*1024);
+
+        this.syncTimer = new Timer("EgaDownloadJournal", true);
+        this.syncTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    sync();
+                } catch (IOException ex) {
+                    System.err.println("Journal sync error: " + ex.getLocalizedMessage());
+                }
+            }
+        }, SYNC_INTERVAL, SYNC_INTERVAL);
+    }
+
+    public File getFile() {
+        return this.file;
+    }
+
+    // Has this ticket been downloaded and verified in an earlier run?
+    public synchronized boolean isVerified(String ticket) {
+        return this.verified.contains(ticket);
+    }
+
+    public synchronized int verifiedCount() {
+        return this.verified.size();
+    }
+
+    public synchronized void append(char type, String ticket, int attempt) {
+        if (this.out == null) return;
+        try {
+            this.out.write(type);
+            this.out.write(' ');
+            this.out.write(ticket);
+            this.out.write(' ');
+            this.out.write(String.valueOf(attempt));
+            this.out.write('\n');
+            this.dirty = true;
+            if (type == VERIFIED)
+                this.verified.add(ticket);
+            else if (type == FAILED)
+                this.verified.remove(ticket);
+        } catch (IOException ex) {
+            System.err.println("Journal write error: " + ex.getLocalizedMessage());
+        }
+    }
+
+    // Group commit: one flush + fsync for everything appended since the last one
+    public synchronized void sync() throws IOException {
+        if (!this.dirty || this.out == null) return;
+        this.out.flush();
+        this.fos.getFD().sync();
+        this.dirty = false;
+    }
+
+    public synchronized void close() {
+        this.syncTimer.cancel();
+        try {
+            sync();
+            if (this.out != null) this.out.close();
+        } catch (IOException ex) {
+            System.err.println("Journal close error: " + ex.getLocalizedMessage());
+        }
+        this.out = null;
+    }
+}
@@ -0,0 +1,418 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egademoclient;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.Timer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import uk.ac.embl.ebi.ega.egadbapiwrapper.EgaDBAPIWrapper;
+import utils.MyTimerTask;
+
+/**
+ *
+ * @author asenf
+ *
+ * Continuous download scheduler. Results are processed in the order in which
+ * downloads finish (not in the order they were submitted), and a failed ticket
+ * goes back on the queue with its attempt count - there is no iteration
+ * barrier, so one long download never holds up the retry of others.
+ * 
+ * Tickets are read from an EgaTicketStore by index; a Job object only exists
+ * while a ticket is in flight or waiting for a retry, so memory use depends on
+ * the number of streams, not on the size of the request. If the store is
+ * still open (request-and-stream mode), new tickets are picked up as they are
+ * added, and the run ends only once the store is closed and drained.
+ * 
+ * With ORDER_SIZE, large files are started largest-first (longest processing
+ * time first), and files below SMALL_FILE_SIZE are also taken smallest-first
+ * by a separate, bounded lane so they never queue behind multi-hour transfers.
+ * 
+ * With an EgaConcurrencyController the number of main download slots is not
+ * fixed: the controller re-evaluates it periodically from measured goodput.
+ * 
+ * The in-flight slot count is the only concurrency limit: with the 'virtual'
+ * executor mode every download gets its own virtual thread, and the slots act
+ * as the semaphore that bounds them.
+ * 
+ * Failed tickets are re-queued after the delay given by the EgaRetryPolicy,
+ * and no new downloads are started while the EgaCircuitBreaker for the primary
+ * data server (where every download starts) is open. Ranged downloads record
+ * the outcome of each request for the server that served it, and skip mirrors
+ * whose circuit is open.
+ * 
+ * With an EgaDecryptPool, every completed .cip file is queued for decryption
+ * straight away. The hand-off never blocks: when the decrypt backlog is full,
+ * finished files wait here and no new downloads start (running downloads,
+ * retries and the breaker are still serviced) until it has room again. A
+ * file whose decryption fails is marked failed in the store and the journal.
+ */
+public class EgaDownloadScheduler implements MyTimerTask.Progress {
+
+    // Ticket ordering modes
+    public static final String ORDER_REQUEST = "request";
+    public static final String ORDER_SIZE = "size";
+    
+    private static final long STREAM_POLL = 250; // ms; check for new tickets in an open store
+    
+    // Small-file lane (ORDER_SIZE only)
+    public static final long SMALL_FILE_SIZE = 64L * 1024L * 1024L;
+    public static final int SMALL_FILE_THREADS = 2;
+
+    private final EgaDBAPIWrapper api;
+    private int numThreads;
+    private final boolean dev_null;
+    private EgaConcurrencyController controller = null;
+    private int segments = 1;
+    private EgaDownloadJournal journal = null;
+    private String executorMode = EgaExecutors.POOL;
+    private EgaRetryPolicy retryPolicy = new EgaRetryPolicy();
+    private EgaDecryptPool decryptPool = null;
+    private String decryptKey = null;
+    private final EgaCircuitBreaker breaker = new EgaCircuitBreaker();
+    private final String server = EgaDemoClient.getPrimaryDataServer(); // API downloads and ranged probes
+    private boolean sizeOrder;
+    private int laneThreads;
+
+    // Tickets not started yet: store indices head..end-1 (through 'order' in size mode)
+    private EgaTicketStore store;
+    private int[] order = null;
+    private int head = 0, end = 0;
+    private final ArrayDeque<Job> ready = new ArrayDeque<>(); // retries that are due
+    private final PriorityQueue<Job> delayed = new PriorityQueue<>(11, new Comparator<Job>() {
+        @Override
+        public int compare(Job a, Job b) { // Earliest retry first
+            return Long.compare(a.notBefore, b.notBefore);
+        }
+    });
+    private final HashMap<Future<Object>, Job> inFlight = new HashMap<>();
+    private int inFlightSmall = 0;
+    private volatile int total = 0, active = 0, completed = 0, failed = 0, retries = 0, lockedRetries = 0, skipped = 0;
+    private final AtomicLong bytesDone = new AtomicLong(0);
+    private final ConcurrentHashMap<String, Job> decrypting = new ConcurrentHashMap<>(); // by file
+    private final ArrayDeque<String> decryptWaiting = new ArrayDeque<>(); // refused by a full backlog
+    private final AtomicInteger decryptFailed = new AtomicInteger(0);
+
+    public EgaDownloadScheduler(EgaDBAPIWrapper api, int numThreads, boolean dev_null) {
+        this(api, numThreads, dev_null, ORDER_REQUEST);
+    }
+    public EgaDownloadScheduler(EgaDBAPIWrapper api, int numThreads, boolean dev_null, String order) {
+        this.api = api;
+        this.numThreads = numThreads;
+        this.dev_null = dev_null;
+        this.sizeOrder = ORDER_SIZE.equalsIgnoreCase(order);
+        this.laneThreads = this.sizeOrder?SMALL_FILE_THREADS:0;
+    }
+    
+    // Let the number of streams be adjusted at runtime between floor and ceiling
+    public void setController(EgaConcurrencyController controller) {
+        this.controller = controller;
+        if (controller != null)
+            this.numThreads = controller.limit();
+    }
+    
+    // Connections per (large) file
+    public void setSegments(int segments) {
+        this.segments = segments;
+    }
+    
+    // EgaExecutors.POOL (default) or EgaExecutors.VIRTUAL
+    public void setExecutorMode(String executorMode) {
+        this.executorMode = executorMode;
+    }
+    
+    // Hand every downloaded .cip file to this pool for decryption
+    public void setDecryptPool(EgaDecryptPool decryptPool) {
+        this.decryptPool = decryptPool;
+        if (decryptPool != null) {
+            decryptPool.setListener(new EgaDecryptPool.Listener() {
+                @Override
+                public void decrypted(String file, boolean ok) {
+                    Job job = decrypting.remove(file);
+                    if (job != null && !ok)
+                        decryptFailed(job);
+                }
+            });
+        }
+    }
+
+    // Downloaded, but not decrypted: the ticket counts as failed (also for a later run)
+    private void decryptFailed(Job job) {
+        this.decryptFailed.incrementAndGet();
+        this.store.setState(job.index, EgaTicketStore.FAILED);
+        if (this.journal != null)
+            this.journal.append(EgaDownloadJournal.FAILED, this.store.getTicket(job.index), job.attempts);
+        System.out.println("Decryption failed: " + this.store.getFileName(job.index));
+    }
+    
+    // Decrypt .cip files while they are downloaded (only plaintext is written)
+    public void setDecryptKey(String decryptKey) {
+        this.decryptKey = decryptKey;
+    }
+    
+    public void setRetryPolicy(EgaRetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+    
+    // Record started/completed/verified/failed tickets
+    public void setJournal(EgaDownloadJournal journal) {
+        this.journal = journal;
+    }
+    
+    public int getNumThreads() {
+        return this.numThreads;
+    }
+
+    // Run all tickets to completion; returns the number of successful tickets.
+    // The state of each ticket (DONE/FAILED) is left in the store
+    public int run(EgaTicketStore store) {
+        this.store = store;
+        this.total = store.size();
+        this.end = store.size();
+        if (this.sizeOrder && !store.isClosed()) {
+            System.out.println("Size order needs the complete request - downloading in request order.");
+            this.sizeOrder = false;
+            this.laneThreads = 0;
+        }
+        if (this.sizeOrder) {
+            this.order = store.bySizeDescending();
+            int small = 0;
+            for (int i=0; i<this.end; i++)
+                if (store.getFileSize(i) < SMALL_FILE_SIZE) small++;
+            System.out.println("Size-ordered download: " + (this.end - small) + " large files (largest first), " +
+                    small + " small files in " + this.laneThreads + " extra lane(s).");
+        }
+
+        int poolSize = (this.controller==null?this.numThreads:this.controller.ceiling()) + this.laneThreads;
+        ExecutorService executorService = EgaExecutors.newExecutor(this.executorMode, poolSize);
+        CompletionService<Object> cs = new ExecutorCompletionService<>(executorService);
+
+        MyTimerTask timerTask = new MyTimerTask(this);
+        Timer theTimer = new Timer(true);
+        theTimer.scheduleAtFixedRate(timerTask, 30000, 30000);
+
+        try {
+            while (true) {
+                boolean open = refresh();
+                handOff();
+                if (!open && this.head >= this.end && this.ready.isEmpty() && this.delayed.isEmpty() && this.inFlight.isEmpty() &&
+                        this.decryptWaiting.isEmpty())
+                    break;
+                // Re-queue failed tickets whose backoff has expired
+                long now = System.currentTimeMillis();
+                while (!this.delayed.isEmpty() && this.delayed.peek().notBefore <= now)
+                    this.ready.add(this.delayed.poll());
+
+                // Keep exactly numThreads downloads in flight; plus the small-file lane
+                Job job;
+                while ((job = next()) != null) {
+                    String ticket = store.getTicket(job.index), name = store.getFileName(job.index);
+                    job.attempts++;
+                    EgaDemoClient_Download worker = new EgaDemoClient_Download(ticket,
+                            job.index, this.total, this.api, this.dev_null, name);
+                    worker.setSegments(this.segments, job.size);
+                    worker.setExecutorMode(this.executorMode);
+                    worker.setDecryptKey(this.decryptKey);
+                    worker.setBreaker(this.breaker, job.probe);
+                    job.worker = worker;
+                    store.setState(job.index, EgaTicketStore.ACTIVE);
+                    if (this.journal != null)
+                        this.journal.append(EgaDownloadJournal.STARTED, ticket, job.attempts);
+                    this.inFlight.put(cs.submit(worker), job);
+                    this.active = this.inFlight.size();
+                }
+
+                // Handle whichever download finishes next - but wake up in time for
+                // the controller, the next delayed retry, or the circuit to close
+                long wait = this.controller==null?Long.MAX_VALUE:1000;
+                if (open || !this.decryptWaiting.isEmpty())
+                    wait = Math.min(wait, STREAM_POLL);
+                if (!this.delayed.isEmpty())
+                    wait = Math.min(wait, this.delayed.peek().notBefore - now);
+                if (this.head < this.end || !this.ready.isEmpty()) {
+                    long closed = this.breaker.waitTime(this.server);
+                    if (closed > 0) wait = Math.min(wait, closed);
+                }
+                Future<Object> f;
+                if (wait == Long.MAX_VALUE)
+                    f = cs.take();
+                else
+                    f = cs.poll(Math.max(1, wait), TimeUnit.MILLISECONDS);
+                if (this.controller != null) // let the controller adjust the number of streams
+                    this.numThreads = this.controller.update(bytesReceived(), this.inFlight.size() - this.inFlightSmall);
+                if (f == null) continue;
+                job = this.inFlight.remove(f);
+                this.active = this.inFlight.size();
+                if (job.lane) this.inFlightSmall--;
+                String stat;
+                try {
+                    stat = String.valueOf(f.get());
+                } catch (ExecutionException ex) {
+                    System.err.println("["+job.index+"] " + ex.getLocalizedMessage());
+                    stat = "Download Failed";
+                }
+
+                String ticket = store.getTicket(job.index);
+                if (stat.startsWith("Download Failed")) {
+                    EgaRetryPolicy.Failure failure = EgaRetryPolicy.Failure.TRANSIENT;
+                    if (stat.endsWith("SKIP"))
+                        failure = job.worker.getLocked()?EgaRetryPolicy.Failure.LOCKED:EgaRetryPolicy.Failure.SKIP;
+                    if (this.journal != null)
+                        this.journal.append(EgaDownloadJournal.FAILED, ticket, job.attempts);
+                    if (this.controller != null && failure != EgaRetryPolicy.Failure.SKIP)
+                        this.controller.error(failure == EgaRetryPolicy.Failure.LOCKED);
+                    // Locked/skipped tickets mean the server answered - only errors count against it
+                    if (!job.worker.getRanged())
+                        this.breaker.record(this.server, failure == EgaRetryPolicy.Failure.TRANSIENT, job.probe);
+
+                    long delay = this.retryPolicy.delay(failure, job.attempts);
+                    if (delay >= 0) {
+                        System.out.println("Re-Try (" + failure.toString().toLowerCase() + ", attempt " + (job.attempts+1) +
+                                ", in " + (delay/1000) + " s): " + store.getFileName(job.index));
+                        if (failure == EgaRetryPolicy.Failure.LOCKED) this.lockedRetries++;
+                        else this.retries++;
+                        job.notBefore = System.currentTimeMillis() + delay;
+                        this.delayed.add(job);
+                    } else {
+                        System.out.println(stat + "  (giving up after " + job.attempts + " attempt(s))");
+                        store.setState(job.index, EgaTicketStore.FAILED);
+                        if (failure == EgaRetryPolicy.Failure.SKIP) this.skipped++;
+                        this.failed++;
+                    }
+                } else {
+                    System.out.println(stat);
+                    if (!job.worker.getRanged())
+                        this.breaker.record(this.server, false, job.probe);
+                    if (this.journal != null) { // Only a verified file is skipped by a later run
+                        this.journal.append(EgaDownloadJournal.COMPLETED, ticket, job.attempts);
+                        if (job.worker.getVerified())
+                            this.journal.append(EgaDownloadJournal.VERIFIED, ticket, job.attempts);
+                    }
+                    store.setState(job.index, EgaTicketStore.DONE);
+                    String file = job.worker.getFile();
+                    if (this.decryptPool != null && file != null && file.endsWith(".cip")) {
+                        this.decrypting.put(file, job);
+                        this.decryptWaiting.add(file);
+                        handOff();
+                    }
+                    this.bytesDone.addAndGet(job.worker.getBytes());
+                    this.completed++;
+                }
+            }
+        } catch (InterruptedException ex) {
+            System.err.println("Download interrupted: " + ex.getLocalizedMessage());
+            Thread.currentThread().interrupt();
+        } finally {
+            theTimer.cancel();
+            timerTask.cancel();
+            executorService.shutdownNow();
+            try {
+                executorService.awaitTermination(60, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        return this.completed;
+    }
+
+    // Pass finished files to the decrypt pool, as far as its backlog has room
+    private void handOff() {
+        while (!this.decryptWaiting.isEmpty() && this.decryptPool.offer(this.decryptWaiting.peek()))
+            this.decryptWaiting.poll();
+    }
+
+    // Completed bytes plus partial progress of running downloads
+    private long bytesReceived() {
+        long bytes = this.bytesDone.get();
+        for (Job job : this.inFlight.values())
+            bytes += job.worker.getBytes();
+        return bytes;
+    }
+    
+    // Pick up tickets added to an open store; returns true while more may come.
+    // The closed flag is read first, so no ticket added before close() is missed
+    private boolean refresh() {
+        boolean open = !this.store.isClosed();
+        if (this.order == null) {
+            this.end = this.store.size();
+            this.total = this.end;
+        }
+        return open;
+    }
+    
+    // Store index of the i-th ticket in dispatch order
+    private int ticketAt(int i) {
+        return this.order==null?i:this.order[i];
+    }
+    
+    // Next job to start, if a slot is free: lane slots only take small files
+    // (smallest first, from the end of the order), main slots take retries
+    // that are due, then large files first and help out with small files after
+    private Job next() {
+        boolean laneSlot = this.inFlightSmall < this.laneThreads && this.head < this.end &&
+                this.store.getFileSize(ticketAt(this.end-1)) < SMALL_FILE_SIZE;
+        boolean mainSlot = this.inFlight.size() - this.inFlightSmall < this.numThreads &&
+                (!this.ready.isEmpty() || this.head < this.end);
+        if ((!laneSlot && !mainSlot) || !this.decryptWaiting.isEmpty() || !this.breaker.allow(this.server)) // decrypt backpressure
+            return null;
+        Job job;
+        if (laneSlot) {
+            job = new Job(ticketAt(--this.end), this.store);
+            job.lane = true;
+            this.inFlightSmall++;
+        } else {
+            job = this.ready.isEmpty()?new Job(ticketAt(this.head++), this.store):this.ready.poll();
+            job.lane = false;
+        }
+        job.probe = this.breaker.isHalfOpen(this.server); // the one download let through
+        return job;
+    }
+    
+    @Override
+    public String progress() {
+        return "Download Active: " + this.total + " jobs submitted, " + this.completed + " completed, " +
+                this.active + " in flight, " + this.failed + " failed (" + this.skipped + " skipped); retries: " +
+                this.retries + " after errors, " + this.lockedRetries + " locked; circuit " + this.breaker.status(this.server) +
+                (this.decryptPool==null?"":"; " + this.decryptFailed.get() + " decryption(s) failed") + ".";
+    }
+
+    // One ticket (by store index) and the number of times it was attempted so far
+    private static class Job {
+        private final int index;
+        private final long size;
+        private int attempts = 0;
+        private boolean lane = false;
+        private boolean probe = false; // half-open probe of the circuit breaker
+        private long notBefore = 0; // earliest time for the next attempt
+        private EgaDemoClient_Download worker = null;
+
+        private Job(int index, EgaTicketStore store) {
+            this.index = index;
+            this.size = store.getFileSize(index);
+        }
+    }
+}
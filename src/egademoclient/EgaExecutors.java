@@ -0,0 +1,152 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egademoclient;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ * @author asenf
+ *
+ * Executors for download tasks. 'pool' is the classic fixed thread pool (one
+ * platform thread, with its stack, per concurrent download). 'virtual' runs
+ * every ticket on its own virtual thread (Java 21+, looked up at runtime so the
+ * client still builds and runs on older JVMs, where it falls back to a cached
+ * pool of small-stack threads). With 'virtual' the number of concurrent
+ * downloads is only limited by the scheduler's slot count, not by a pool size.
+ */
+public class EgaExecutors {
+
+    public static final String POOL = "pool";
+    public static final String VIRTUAL = "virtual";
+
+    public static final int MAX_POOL_STREAMS = 15;
+    public static final int MAX_VIRTUAL_STREAMS = 1000;
+
+    private static final long SMALL_STACK = 256L * 1024L; // fallback thread stack size
+
+    public static boolean virtualAvailable() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException ex) {
+            return false;
+        }
+    }
+
+    public static int maxStreams(String mode) {
+        return VIRTUAL.equalsIgnoreCase(mode)?MAX_VIRTUAL_STREAMS:MAX_POOL_STREAMS;
+    }
+
+    public static ExecutorService newExecutor(String mode, int threads) {
+        if (VIRTUAL.equalsIgnoreCase(mode)) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException ex) {
+                return Executors.newCachedThreadPool(new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger(0);
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(null, r, "download-" + count.incrementAndGet(), SMALL_STACK);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+        }
+        return Executors.newFixedThreadPool(threads);
+    }
+
+    // -------------------------------------------------------------------------
+    // Comparison of both modes: each simulated transfer blocks on 'network'
+    // latency (TRANSFER_STEPS x STEP_LATENCY) and touches a 64 KB buffer per step
+    private static final int TRANSFER_STEPS = 20;
+    private static final long STEP_LATENCY = 10; // ms
+
+    public static String compare(int[] streams) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Executor comparison (").append(System.getProperty("java.version"))
+                .append(", virtual threads ").append(virtualAvailable()?"available":"not available - small-stack fallback").append(")\n");
+        sb.append(String.format("%-8s %8s %12s %14s %12s%n", "mode", "streams", "transfers/s", "peak threads", "heap MB"));
+        String[] modes = {POOL, VIRTUAL};
+        for (int n : streams) {
+            for (String mode : modes) {
+                sb.append(compareOne(mode, n));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String compareOne(String mode, int streams) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Runtime rt = Runtime.getRuntime();
+        System.gc();
+        long heapBefore = rt.totalMemory() - rt.freeMemory();
+        threads.resetPeakThreadCount();
+
+        int transfers = streams * 4;
+        ExecutorService ex = newExecutor(mode, streams);
+        long time = System.currentTimeMillis();
+        long heapPeak = heapBefore;
+        // 'pool' is limited by its size; 'virtual' by a semaphore with the same number of permits
+        final Semaphore permits = new Semaphore(streams);
+        final boolean gate = VIRTUAL.equalsIgnoreCase(mode);
+        try {
+            ArrayList<Future<Integer>> f = new ArrayList<>();
+            for (int i=0; i<transfers; i++) {
+                if (gate) permits.acquire();
+                f.add(ex.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        try {
+                            byte[] buf = new byte[64*1024];
+                            int sum = 0;
+                            for (int s=0; s<TRANSFER_STEPS; s++) {
+                                Thread.sleep(STEP_LATENCY);
+                                buf[s] = (byte) s;
+                                sum += buf[s];
+                            }
+                            return sum;
+                        } finally {
+                            if (gate) permits.release();
+                        }
+                    }
+                }));
+                heapPeak = Math.max(heapPeak, rt.totalMemory() - rt.freeMemory());
+            }
+            for (Future<Integer> one : f)
+                one.get();
+        } catch (InterruptedException | ExecutionException e) {
+            return String.format("%-8s %8d  error: %s%n", mode, streams, e.getLocalizedMessage());
+        } finally {
+            ex.shutdownNow();
+        }
+        time = System.currentTimeMillis() - time;
+
+        return String.format("%-8s %8d %12.1f %14d %12.1f%n", mode, streams,
+                transfers / (time / 1000.0), threads.getPeakThreadCount(), (heapPeak - heapBefore) / 1024.0 / 1024.0);
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egademoclient;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import utils.BufferPool;
+
+/**
+ *
+ * @author asenf
+ *
+ * Where downloaded bytes go: the partial '.egastream' file of one download,
+ * plus the state file that records which of its ranges are complete. The
+ * file is allocated to its full size up front (after checking that the space
+ * is there), and written with large positional writes.
+ *
+ * Durability policy (for all downloads):
+ *   file  - one fsync when the file is complete
+ *   group - as 'file', and every N seconds all open files are fsync'ed together
+ *   none  - never fsync (survives a crash of the client, not of the host)
+ * State lines are held back until the data they describe has been fsync'ed,
+ * so a resume never trusts data that may not have reached the disk; with
+ * 'file' a download cut short by a crash therefore starts over. The completed file
+ * is renamed atomically, and (unless 'none') the directory is fsync'ed so the
+ * new name is durable too.
+ *
+ * Direct I/O (optional, for all downloads): bulk downloads bypass the page
+ * cache, so a multi-TB transfer doesn't evict everybody else's data on a
+ * shared node. Aligned blocks in (aligned) BufferPool buffers are written
+ * with O_DIRECT; the unaligned tail of a file goes through the cache.
+ * Verification reads (resume checks, MD5) use a Reader with the same policy.
+ * If the JVM or the file system doesn't support O_DIRECT, the page cache is
+ * used as before.
+ */
+public class EgaFileSink {
+
+    public static final String SYNC_FILE = "file";
+    public static final String SYNC_GROUP = "group";
+    public static final String SYNC_NONE = "none";
+
+    public static final int WRITE_SIZE = 4 * 1024 * 1024; // bytes per write
+    public static final int ALIGN = BufferPool.ALIGN;     // O_DIRECT offsets, lengths and buffers
+
+    private static volatile boolean direct = false;
+    private static final OpenOption DIRECT = directOption(); // null: not in this JVM (Java 10+)
+
+    private static volatile String policy = SYNC_GROUP;
+    private static volatile int interval = 5; // s, for 'group'
+    private static final Set<EgaFileSink> open = Collections.newSetFromMap(new ConcurrentHashMap<EgaFileSink, Boolean>());
+    private static Timer syncTimer = null;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private volatile FileChannel directChannel = null; // O_DIRECT, if enabled and supported
+    private Reader reader = null;
+    private FileOutputStream log = null;
+    private ArrayList<String> pending = new ArrayList<>(); // state lines waiting for their data to be synced
+    private final Object syncLock = new Object();
+
+    // Opens (and if necessary allocates) 'file' with 'length' bytes
+    public EgaFileSink(File file, long length) throws IOException {
+        this.file = file;
+        long missing = length - (file.exists()?file.length():0);
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (missing > 0 && dir.getUsableSpace() < missing)
+            throw new IOException("Not enough space for " + file.getName() + ": " + missing + " bytes needed, " + dir.getUsableSpace() + " available");
+        this.raf = new RandomAccessFile(file, "rw");
+        if (this.raf.length() != length)
+            this.raf.setLength(length);
+        this.channel = this.raf.getChannel();
+        if (direct)
+            this.directChannel = openDirect(file.toPath(), StandardOpenOption.WRITE);
+        if (SYNC_GROUP.equals(policy))
+            register(this);
+    }
+
+    // -------------------------------------------------------------------------
+    // Policy
+
+    public static String setPolicy(String policy_, int seconds) {
+        policy_ = policy_.trim().toLowerCase();
+        if (!policy_.equals(SYNC_FILE) && !policy_.equals(SYNC_GROUP) && !policy_.equals(SYNC_NONE))
+            throw new IllegalArgumentException("Unknown sync policy: " + policy_);
+        policy = policy_;
+        if (seconds > 0) interval = seconds;
+        synchronized (EgaFileSink.class) {
+            if (syncTimer != null) { // re-started with the new interval by the next download
+                syncTimer.cancel();
+                syncTimer = null;
+            }
+        }
+        return status();
+    }
+
+    public static String status() {
+        return "Sync policy: " + policy + (SYNC_GROUP.equals(policy)?" (every " + interval + " s)":"");
+    }
+
+    public static boolean durable() {
+        return !SYNC_NONE.equals(policy);
+    }
+
+    public static String setDirect(boolean on) {
+        direct = on;
+        return directStatus();
+    }
+
+    public static String directStatus() {
+        return "Direct I/O: " + (direct?"on":"off") + (DIRECT==null?" (not supported by this JVM: page cache is used)":"");
+    }
+
+    private static OpenOption directOption() {
+        try {
+            for (Object one : Class.forName("com.sun.nio.file.ExtendedOpenOption").getEnumConstants())
+                if (one.toString().equals("DIRECT"))
+                    return (OpenOption) one;
+        } catch (ClassNotFoundException ex) {
+        }
+        return null;
+    }
+
+    // An O_DIRECT channel, or null if that isn't possible here
+    private static FileChannel openDirect(Path path, OpenOption mode) {
+        if (DIRECT == null) return null;
+        try {
+            return FileChannel.open(path, mode, DIRECT);
+        } catch (IOException | UnsupportedOperationException ex) {
+            System.out.println("Direct I/O not possible for " + path.getFileName() + " (" + ex.getLocalizedMessage() + "): using the page cache.");
+            return null;
+        }
+    }
+
+    private static void closeQuietly(Closeable c) {
+        try {
+            if (c != null) c.close();
+        } catch (IOException ex) {
+        }
+    }
+
+    private static synchronized void register(EgaFileSink sink) {
+        open.add(sink);
+        if (syncTimer != null) return;
+        syncTimer = new Timer("EgaFileSink", true);
+        syncTimer.schedule(new TimerTask() {
+            @Override
+            public void run() { // one round of fsyncs for all open files
+                for (EgaFileSink one : open) {
+                    try {
+                        one.sync();
+                    } catch (IOException ex) {
+                        System.err.println("Sync error (" + one.file.getName() + "): " + ex.getLocalizedMessage());
+                    }
+                }
+            }
+        }, interval * 1000L, interval * 1000L);
+    }
+
+    // -------------------------------------------------------------------------
+    // Writing
+
+    public FileChannel getChannel() {
+        return this.channel;
+    }
+
+    // State file that gets the lines passed to log()
+    public void setLog(FileOutputStream log) {
+        this.log = log;
+    }
+
+    // Writes all of 'src'; O_DIRECT if it is an aligned pool buffer and the block is aligned
+    public void write(ByteBuffer src, long pos) throws IOException {
+        FileChannel direct_ = this.directChannel;
+        if (direct_ != null && src.isDirect() && pos % ALIGN == 0 && src.position() % ALIGN == 0 && src.remaining() % ALIGN == 0) {
+            int start = src.position();
+            try {
+                while (src.hasRemaining())
+                    direct_.write(src, pos + src.position() - start);
+                return;
+            } catch (IOException ex) { // e.g. EINVAL: the file system accepted the flag, but not the write
+                System.out.println("Direct I/O failed for " + this.file.getName() + " (" + ex.getLocalizedMessage() + "): using the page cache.");
+                this.directChannel = null;
+                closeQuietly(direct_);
+                src.position(start);
+            }
+        }
+        while (src.hasRemaining())
+            pos += this.channel.write(src, pos);
+    }
+
+    // Read back written data (same as Reader.read)
+    public int read(ByteBuffer dst, long pos) throws IOException {
+        Reader reader_;
+        synchronized (this) {
+            if (this.reader == null)
+                this.reader = new Reader(this.file);
+            reader_ = this.reader;
+        }
+        return reader_.read(dst, pos);
+    }
+
+    // A state line for data that has been written (not necessarily synced)
+    public void log(String line) throws IOException {
+        synchronized (this) {
+            this.pending.add(line);
+        }
+        if (!durable())
+            flush(false);
+    }
+
+    // Data to disk, then the state lines that describe it
+    public void sync() throws IOException {
+        flush(true);
+    }
+
+    private void flush(boolean force) throws IOException {
+        synchronized (this.syncLock) {
+            if (!this.channel.isOpen()) return; // closed while the group sync was waiting
+            ArrayList<String> lines;
+            synchronized (this) { // lines added from here on may describe data not yet forced
+                lines = this.pending;
+                this.pending = new ArrayList<>();
+            }
+            if (force)
+                this.channel.force(false);
+            if (this.log == null || lines.isEmpty()) return;
+            StringBuilder sb = new StringBuilder();
+            for (String line : lines)
+                sb.append(line).append("\n");
+            this.log.write(sb.toString().getBytes("UTF-8"));
+            if (force)
+                this.log.getFD().sync();
+        }
+    }
+
+    // Complete or not: make what was written durable (per policy) and close the file
+    public void close() throws IOException {
+        open.remove(this);
+        try {
+            flush(durable());
+        } finally {
+            closeQuietly(this.directChannel);
+            closeQuietly(this.reader);
+            this.raf.close();
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Reading back (verification), with the same cache policy as the writes
+
+    public static class Reader implements Closeable {
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private FileChannel directChannel;
+
+        public Reader(File file) throws IOException {
+            this.raf = new RandomAccessFile(file, "r");
+            this.channel = this.raf.getChannel();
+            if (direct)
+                this.directChannel = openDirect(file.toPath(), StandardOpenOption.READ);
+        }
+
+        // Reads into 'dst' from 'pos' (as FileChannel.read); -1 at the end of the file
+        public int read(ByteBuffer dst, long pos) throws IOException {
+            FileChannel direct_ = this.directChannel;
+            if (direct_ != null && dst.isDirect() && pos % ALIGN == 0 && dst.position() % ALIGN == 0) {
+                // O_DIRECT reads whole blocks: round up (the tail of the file), if the buffer has room
+                int want = dst.remaining(), limit = dst.limit();
+                int round = (want + ALIGN - 1) / ALIGN * ALIGN;
+                if (dst.position() + round <= dst.capacity()) {
+                    dst.limit(dst.position() + round);
+                    try {
+                        int read = direct_.read(dst, pos);
+                        if (read > want) {
+                            dst.position(dst.position() - (read - want));
+                            read = want;
+                        }
+                        return read;
+                    } catch (IOException ex) {
+                        closeQuietly(direct_);
+                        this.directChannel = null;
+                    } finally {
+                        dst.limit(limit);
+                    }
+                }
+            }
+            return this.channel.read(dst, pos); // unaligned (e.g. ranges of an older attempt): page cache
+        }
+
+        @Override
+        public void close() throws IOException {
+            closeQuietly(this.directChannel);
+            this.raf.close();
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Completed files
+
+    // Atomic rename of a completed (closed) file, then the directory entry to disk
+    public static void commit(File partial, File target) throws IOException {
+        try {
+            Files.move(partial.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+            Files.move(partial.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (durable())
+            syncDirectory(target.getAbsoluteFile().getParentFile());
+    }
+
+    // For files written by the API: apply the policy after the fact
+    public static void complete(File file) {
+        if (!durable() || !file.isFile()) return;
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            ch.force(true);
+        } catch (IOException ex) {
+            System.err.println("Sync error (" + file.getName() + "): " + ex.getLocalizedMessage());
+        }
+        syncDirectory(file.getAbsoluteFile().getParentFile());
+    }
+
+    private static void syncDirectory(File dir) {
+        try (FileChannel ch = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            ch.force(true);
+        } catch (IOException ex) {
+            // Not possible on every platform (e.g. Windows); the rename itself is still atomic
+        }
+    }
+}
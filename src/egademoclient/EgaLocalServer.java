@@ -0,0 +1,652 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egademoclient;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ *
+ * @author asenf
+ *
+ * Local stand-in for the EGA info and data services, so transfers can be
+ * measured repeatably without production. It answers (plain HTTP, one port):
+ *
+ *   POST /ega/rest/access/v2/users/login             login (any user/password)
+ *   GET  /ega/rest/access/v2/users/logout
+ *   GET  /ega/rest/access/v2/datasets                one synthetic dataset
+ *   GET  /ega/rest/access/v2/datasets/{id}/files
+ *   GET  /ega/rest/access/v2/requests                request labels
+ *   GET  /ega/rest/access/v2/requests/{label}        tickets of a request
+ *   POST /ega/rest/access/v2/requests/new/{type}/{id} requestByID; type is
+ *                                                     dataset, file or teststream (id = size)
+ *   GET  /ega/rest/access/v2/requests/delete/{label}
+ *   GET  /ega/rest/ds/v2/downloads/{ticket}          ticket download
+ *
+ * Info replies use the {"header":..., "response":{"result":[...]}} layout of
+ * the access service. The API wrapper's own wire format isn't published, so
+ * these are a best approximation; ticket downloads follow the ranged ticket
+ * URL protocol used by EgaSegmentedDownload exactly (Range -> 206 with
+ * Content-Range, X-Ega-MD5 and X-Ega-Plain-MD5).
+ *
+ * Files are real .cip files: a 16 byte IV and AES-128/CTR ciphertext of a
+ * fixed pattern, under the request's re-encryption key (or the server key),
+ * generated on the fly - so any size costs no disk space, and downloads can
+ * be decrypted and verified by the client. Total and per-connection
+ * bandwidth, latency before each reply, error rate (500 responses and
+ * connections cut mid-transfer) and the rate of "Ticket is Locked!" replies
+ * are configurable.
+ */
+public class EgaLocalServer {
+
+    public static final String ACCESS = "/ega/rest/access/v2";
+    public static final String DOWNLOADS = "/ega/rest/ds/v2/downloads/";
+    public static final String DATASET = "EGAD00000000001";
+
+    private static final int CHUNK = 64 * 1024;
+    private static final int PATTERN_SIZE = 1024 * 1024;
+    private static final byte[] PATTERN = new byte[PATTERN_SIZE];
+    static {
+        new Random(17).nextBytes(PATTERN);
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    // Settings; may be changed while running
+    private volatile long fileSize = 64L * 1024L * 1024L; // dataset files
+    private volatile int datasetFiles = 8;
+    private volatile long bandwidth = 0; // bytes/s over all connections, 0: unlimited
+    private volatile long streamBandwidth = 0; // bytes/s per connection, 0: unlimited
+    private volatile int latency = 0; // ms before each reply
+    private volatile double errorRate = 0; // 0..1
+    private volatile double lockedRate = 0; // 0..1
+    private volatile String key = "local";
+
+    private final Map<String, LocalFile> tickets = new ConcurrentHashMap<>();
+    private final Map<String, List<String>> requests = new ConcurrentHashMap<>(); // label -> tickets
+    private final Map<String, String[]> digests = new ConcurrentHashMap<>(); // {md5, plain md5} per content
+    private final Map<String, SecretKeySpec> secrets = new ConcurrentHashMap<>();
+    private final Random rnd = new Random();
+    private long nextFree = 0; // total bandwidth: time (ns) the link is free again
+
+    private final AtomicLong served = new AtomicLong(0), errors = new AtomicLong(0), locked = new AtomicLong(0);
+
+    // A file behind a ticket; the IV (derived from 'seed') makes its content unique
+    private static final class LocalFile {
+        final String ticket, label, name, key;
+        final long size, seed;
+
+        LocalFile(String ticket, String label, String name, long size, long seed, String key) {
+            this.ticket = ticket;
+            this.label = label;
+            this.name = name;
+            this.size = size;
+            this.seed = seed;
+            this.key = key;
+        }
+
+        byte[] iv() {
+            byte[] iv = new byte[EgaChunkedDecrypt.IV_SIZE];
+            new Random(this.seed).nextBytes(iv);
+            return iv;
+        }
+    }
+
+    public EgaLocalServer(int port) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(port), 128);
+        this.executor = Executors.newCachedThreadPool();
+        this.server.setExecutor(this.executor);
+        this.server.createContext(ACCESS, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    access(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        this.server.createContext(DOWNLOADS, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    download(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+    }
+
+    public void start() {
+        this.server.start();
+    }
+
+    public void stop() {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+
+    public int getPort() {
+        return this.server.getAddress().getPort();
+    }
+
+    public void setFileSize(long bytes) {
+        this.fileSize = Math.max(EgaChunkedDecrypt.IV_SIZE + 1, bytes);
+    }
+    public void setDatasetFiles(int files) {
+        this.datasetFiles = Math.max(1, files);
+    }
+    public void setBandwidth(long bytesPerSecond) {
+        this.bandwidth = Math.max(0, bytesPerSecond);
+    }
+    public void setStreamBandwidth(long bytesPerSecond) {
+        this.streamBandwidth = Math.max(0, bytesPerSecond);
+    }
+    public void setLatency(int ms) {
+        this.latency = Math.max(0, ms);
+    }
+    public void setErrorRate(double rate) {
+        this.errorRate = Math.min(1, Math.max(0, rate));
+    }
+    public void setLockedRate(double rate) {
+        this.lockedRate = Math.min(1, Math.max(0, rate));
+    }
+    public void setKey(String key) {
+        this.key = key;
+    }
+
+    // requestByID: issues tickets under 'label' and returns them
+    public List<String> request(String type, String id, String reKey, String label) throws IOException {
+        String key_ = (reKey == null || reKey.length() == 0 || reKey.equalsIgnoreCase("n"))?this.key:reKey;
+        ArrayList<String> issued = new ArrayList<>();
+        if (type.equalsIgnoreCase("teststream")) {
+            long size = Long.parseLong(id.trim());
+            issued.add(issue(label, "teststream_" + size + ".cip", size, size, key_)); // same size: same content
+        } else if (type.equalsIgnoreCase("dataset")) {
+            if (!id.equalsIgnoreCase(DATASET))
+                throw new IOException("Unknown dataset " + id);
+            for (int i=0; i<this.datasetFiles; i++)
+                issued.add(issue(label, fileName(i), this.fileSize, fileId(i).hashCode(), key_));
+        } else if (type.equalsIgnoreCase("file")) {
+            int i = fileIndex(id);
+            if (i < 0)
+                throw new IOException("Unknown file " + id);
+            issued.add(issue(label, fileName(i), this.fileSize, fileId(i).hashCode(), key_));
+        } else
+            throw new IOException("Unsupported request type " + type);
+        List<String> all = this.requests.get(label);
+        if (all == null) {
+            all = Collections.synchronizedList(new ArrayList<String>());
+            this.requests.put(label, all);
+        }
+        all.addAll(issued);
+        return issued;
+    }
+
+    public void delete(String label) {
+        List<String> all = this.requests.remove(label);
+        if (all != null)
+            for (String t : all)
+                this.tickets.remove(t);
+    }
+
+    private String issue(String label, String name, long size, long seed, String key_) throws IOException {
+        String ticket = UUID.randomUUID().toString();
+        LocalFile f = new LocalFile(ticket, label, name, size, seed, key_);
+        digests(f); // MD5s up front, so they don't count against the first download
+        this.tickets.put(ticket, f);
+        return ticket;
+    }
+
+    private static String fileId(int i) {
+        return String.format("EGAF%011d", i + 1);
+    }
+    private static String fileName(int i) {
+        return "local/sample_" + (i + 1) + ".bam.cip";
+    }
+    private int fileIndex(String id) {
+        for (int i=0; i<this.datasetFiles; i++)
+            if (fileId(i).equalsIgnoreCase(id)) return i;
+        return -1;
+    }
+
+    public String status() {
+        return String.format("Local server on port %d: %d ticket(s) in %d request(s); %.1f MB served, %d error(s), %d locked reply(s).",
+                getPort(), this.tickets.size(), this.requests.size(), this.served.get() / 1024.0 / 1024.0, this.errors.get(), this.locked.get());
+    }
+
+    // -------------------------------------------------------------------------
+    // Info service
+
+    private void access(HttpExchange exchange) throws IOException {
+        pause();
+        String path = exchange.getRequestURI().getPath().substring(ACCESS.length());
+        String[] p = path.replaceAll("^/+|/+$", "").split("/");
+        String body = read(exchange);
+        try {
+            if (p[0].equals("users") && p.length > 1 && p[1].equals("login")) {
+                reply(exchange, 200, "OK", json("success", "local-" + UUID.randomUUID().toString()));
+            } else if (p[0].equals("users") && p.length > 1 && p[1].equals("logout")) {
+                reply(exchange, 200, "OK", json("logged out"));
+            } else if (p[0].equals("datasets") && p.length == 1) {
+                reply(exchange, 200, "OK", json(DATASET));
+            } else if (p[0].equals("datasets") && p.length == 3 && p[2].equals("files")) {
+                if (!p[1].equalsIgnoreCase(DATASET)) {
+                    reply(exchange, 404, "Unknown dataset " + p[1], json());
+                    return;
+                }
+                StringBuilder sb = new StringBuilder();
+                for (int i=0; i<this.datasetFiles; i++) {
+                    if (i > 0) sb.append(',');
+                    sb.append("{\"fileID\":").append(quote(fileId(i))).append(",\"fileName\":").append(quote(fileName(i)))
+                      .append(",\"fileSize\":").append(this.fileSize).append(",\"fileDataset\":").append(quote(DATASET)).append('}');
+                }
+                reply(exchange, 200, "OK", "[" + sb + "]");
+            } else if (p[0].equals("requests") && p.length == 1) {
+                reply(exchange, 200, "OK", json(this.requests.keySet().toArray(new String[0])));
+            } else if (p[0].equals("requests") && p.length == 4 && p[1].equals("new")) {
+                String reKey = field(body, "rekey"), label = field(body, "descriptor");
+                if (label == null || label.length() == 0)
+                    label = "request_" + UUID.randomUUID().toString();
+                List<String> issued = request(p[2], URLDecoder.decode(p[3], "UTF-8"), reKey, label);
+                reply(exchange, 200, "OK", tickets(issued));
+            } else if (p[0].equals("requests") && p.length == 3 && p[1].equals("delete")) {
+                delete(URLDecoder.decode(p[2], "UTF-8"));
+                reply(exchange, 200, "OK", json("deleted"));
+            } else if (p[0].equals("requests") && p.length == 2) {
+                List<String> all = this.requests.get(URLDecoder.decode(p[1], "UTF-8"));
+                if (all == null) {
+                    reply(exchange, 404, "Unknown request " + p[1], json());
+                    return;
+                }
+                ArrayList<String> copy;
+                synchronized (all) {
+                    copy = new ArrayList<>(all);
+                }
+                reply(exchange, 200, "OK", tickets(copy));
+            } else
+                reply(exchange, 404, "Not found: " + path, json());
+        } catch (IOException | NumberFormatException ex) {
+            reply(exchange, 400, ex.getLocalizedMessage(), json());
+        }
+    }
+
+    private String tickets(List<String> list) {
+        StringBuilder sb = new StringBuilder("[");
+        for (String t : list) {
+            LocalFile f = this.tickets.get(t);
+            if (f == null) continue;
+            if (sb.length() > 1) sb.append(',');
+            sb.append("{\"ticket\":").append(quote(f.ticket)).append(",\"label\":").append(quote(f.label))
+              .append(",\"fileName\":").append(quote(f.name)).append(",\"fileSize\":").append(f.size)
+              .append(",\"fileType\":\"cip\"}");
+        }
+        return sb.append(']').toString();
+    }
+
+    private static void reply(HttpExchange exchange, int code, String message, String result) throws IOException {
+        String json = "{\"header\":{\"code\":\"" + code + "\",\"userMessage\":" + quote(message) + "},"
+                + "\"response\":{\"numTotalResults\":" + count(result) + ",\"result\":" + result + "}}";
+        byte[] b = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, b.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(b);
+        }
+    }
+
+    // Elements of a flat JSON array
+    private static int count(String array) {
+        int n = 0, depth = 0;
+        boolean string = false, any = false;
+        for (int i=1; i<array.length()-1; i++) {
+            char c = array.charAt(i);
+            if (c == '\\') { i++; continue; }
+            if (c == '"') string = !string;
+            if (string) { any = true; continue; }
+            if (c == '{' || c == '[') depth++;
+            else if (c == '}' || c == ']') depth--;
+            else if (c == ',' && depth == 0) n++;
+            if (!Character.isWhitespace(c)) any = true;
+        }
+        return any?n+1:0;
+    }
+
+    private static String json(String... values) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i=0; i<values.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(quote(values[i]));
+        }
+        return sb.append(']').toString();
+    }
+
+    private static String quote(String s) {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private static String read(HttpExchange exchange) throws IOException {
+        byte[] buf = new byte[4096];
+        StringBuilder sb = new StringBuilder();
+        try (InputStream in = exchange.getRequestBody()) {
+            int read;
+            while ( (read = in.read(buf)) > 0 )
+                sb.append(new String(buf, 0, read, StandardCharsets.UTF_8));
+        }
+        return URLDecoder.decode(sb.toString(), "UTF-8");
+    }
+
+    // "name":"value" from a (form-encoded) JSON body
+    private static String field(String body, String name) {
+        Matcher m = Pattern.compile("\"" + name + "\"\\s*:\\s*\"([^\"]*)\"", Pattern.CASE_INSENSITIVE).matcher(body);
+        return m.find()?m.group(1):null;
+    }
+
+    // -------------------------------------------------------------------------
+    // Data service
+
+    private void download(HttpExchange exchange) throws IOException {
+        pause();
+        String ticket = exchange.getRequestURI().getPath().substring(DOWNLOADS.length());
+        LocalFile f = this.tickets.get(ticket);
+        if (f == null) {
+            text(exchange, 404, "Unknown ticket " + ticket);
+            return;
+        }
+        double dice;
+        synchronized (this.rnd) {
+            dice = this.rnd.nextDouble();
+        }
+        if (dice < this.lockedRate) {
+            this.locked.incrementAndGet();
+            text(exchange, 423, "Ticket is Locked!");
+            return;
+        }
+        boolean cut = false;
+        if (dice < this.lockedRate + this.errorRate) { // half fail right away, half part-way through
+            this.errors.incrementAndGet();
+            if (dice < this.lockedRate + this.errorRate / 2) {
+                text(exchange, 500, "Internal error (simulated)");
+                return;
+            }
+            cut = true;
+        }
+
+        long from = 0, to = f.size - 1;
+        int code = 200;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range != null) {
+            Matcher m = Pattern.compile("bytes=(\\d+)-(\\d*)").matcher(range.trim());
+            if (!m.matches() || Long.parseLong(m.group(1)) >= f.size) {
+                exchange.getResponseHeaders().set("Content-Range", "bytes */" + f.size);
+                text(exchange, 416, "Range not satisfiable");
+                return;
+            }
+            from = Long.parseLong(m.group(1));
+            if (m.group(2).length() > 0)
+                to = Math.min(to, Long.parseLong(m.group(2)));
+            if (to < from) {
+                exchange.getResponseHeaders().set("Content-Range", "bytes */" + f.size);
+                text(exchange, 416, "Range not satisfiable");
+                return;
+            }
+            code = 206;
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + from + "-" + to + "/" + f.size);
+        }
+        String[] md5 = digests(f);
+        exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+        exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+        exchange.getResponseHeaders().set("X-Ega-MD5", md5[0]);
+        exchange.getResponseHeaders().set("X-Ega-Plain-MD5", md5[1]);
+        long length = to - from + 1;
+        if (exchange.getRequestMethod().equalsIgnoreCase("HEAD")) {
+            exchange.sendResponseHeaders(code, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(code, length);
+
+        long stop = cut?from + length / 2:to + 1;
+        long start = System.nanoTime(), sent = 0;
+        try (OutputStream os = exchange.getResponseBody()) {
+            Content content = new Content(f, from);
+            byte[] buf = new byte[CHUNK];
+            for (long pos = from; pos < stop; ) {
+                int n = (int) Math.min(CHUNK, stop - pos);
+                content.read(buf, n);
+                throttle(n, sent, start);
+                os.write(buf, 0, n);
+                pos += n;
+                sent += n;
+                this.served.addAndGet(n);
+            }
+            if (cut) // connection dropped: the client sees a short body
+                throw new IOException("Connection cut (simulated)");
+        } catch (GeneralSecurityException ex) {
+            throw new IOException(ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void text(HttpExchange exchange, int code, String message) throws IOException {
+        byte[] b = message.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain");
+        exchange.sendResponseHeaders(code, b.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(b);
+        }
+    }
+
+    private void pause() {
+        if (this.latency > 0)
+            try {Thread.sleep(this.latency);} catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+    }
+
+    // Waits until 'n' more bytes fit the total and the per-connection rate
+    private void throttle(int n, long sent, long start) throws InterruptedException {
+        long wait = 0;
+        if (this.bandwidth > 0) {
+            synchronized (this) {
+                long now = System.nanoTime();
+                this.nextFree = Math.max(this.nextFree, now) + n * 1000000000L / this.bandwidth;
+                wait = this.nextFree - now - n * 1000000000L / this.bandwidth; // send, then the link is busy
+            }
+        }
+        if (this.streamBandwidth > 0)
+            wait = Math.max(wait, start + sent * 1000000000L / this.streamBandwidth - System.nanoTime());
+        if (wait > 0)
+            Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+    }
+
+    // MD5 of the file as served, and of its plaintext (cached: same content, same sums)
+    private String[] digests(LocalFile f) throws IOException {
+        String id = f.size + ":" + f.seed + ":" + f.key;
+        String[] md5 = this.digests.get(id);
+        if (md5 != null) return md5;
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5"), plain = MessageDigest.getInstance("MD5");
+            Content content = new Content(f, 0);
+            byte[] buf = new byte[CHUNK];
+            for (long pos = 0; pos < f.size; ) {
+                int n = (int) Math.min(CHUNK, f.size - pos);
+                content.read(buf, n);
+                md.update(buf, 0, n);
+                pos += n;
+            }
+            long plainLength = f.size - EgaChunkedDecrypt.IV_SIZE;
+            for (long pos = 0; pos < plainLength; ) {
+                int n = (int) Math.min(CHUNK, plainLength - pos);
+                pattern(pos, buf, n);
+                plain.update(buf, 0, n);
+                pos += n;
+            }
+            md5 = new String[]{String.format("%032x", new BigInteger(1, md.digest())), String.format("%032x", new BigInteger(1, plain.digest()))};
+        } catch (GeneralSecurityException ex) {
+            throw new IOException(ex);
+        }
+        this.digests.put(id, md5);
+        return md5;
+    }
+
+    private SecretKeySpec secret(String key_) throws GeneralSecurityException {
+        SecretKeySpec secret = this.secrets.get(key_);
+        if (secret == null) {
+            secret = EgaChunkedDecrypt.secret(key_); // same key derivation as the client
+            this.secrets.put(key_, secret);
+        }
+        return secret;
+    }
+
+    // Plaintext at 'offset': the pattern, repeated
+    private static void pattern(long offset, byte[] buf, int n) {
+        int done = 0;
+        while (done < n) {
+            int p = (int) ((offset + done) % PATTERN_SIZE);
+            int k = Math.min(n - done, PATTERN_SIZE - p);
+            System.arraycopy(PATTERN, p, buf, done, k);
+            done += k;
+        }
+    }
+
+    // Sequential reader of a file's bytes (IV, then ciphertext), from any position
+    private final class Content {
+        private final byte[] iv;
+        private final Cipher cipher;
+        private long pos; // file position
+        private final byte[] plain = new byte[CHUNK];
+
+        Content(LocalFile f, long from) throws GeneralSecurityException {
+            this.iv = f.iv();
+            this.pos = from;
+            long offset = Math.max(0, from - EgaChunkedDecrypt.IV_SIZE); // plaintext offset
+            long aligned = offset - offset % 16;
+            this.cipher = Cipher.getInstance("AES/CTR/NoPadding");
+            this.cipher.init(Cipher.ENCRYPT_MODE, secret(f.key), new IvParameterSpec(EgaChunkedDecrypt.counter(this.iv, aligned)));
+            if (offset > aligned) { // into a cipher block: skip its first bytes
+                byte[] skip = new byte[(int) (offset - aligned)];
+                this.cipher.update(skip);
+            }
+        }
+
+        void read(byte[] buf, int n) throws GeneralSecurityException {
+            int done = 0;
+            while (done < n && this.pos < EgaChunkedDecrypt.IV_SIZE) {
+                buf[done++] = this.iv[(int) this.pos];
+                this.pos++;
+            }
+            if (done == n) return;
+            pattern(this.pos - EgaChunkedDecrypt.IV_SIZE, this.plain, n - done);
+            this.cipher.update(this.plain, 0, n - done, buf, done);
+            this.pos += n - done;
+        }
+    }
+
+    // -------------------------------------------------------------------------
+
+    static Options options() {
+        Options options = new Options();
+        options.addOption("help", false, "help");
+        options.addOption("port", true, "port (default 8110; 0: any free port)");
+        options.addOption("size", true, "size of dataset files in MB (default 64)");
+        options.addOption("files", true, "files in the dataset (default 8)");
+        options.addOption("bandwidth", true, "total bandwidth in MB/s (default: unlimited)");
+        options.addOption("streambandwidth", true, "bandwidth per connection in MB/s (default: unlimited)");
+        options.addOption("latency", true, "delay before each reply in ms (default 0)");
+        options.addOption("errors", true, "percentage of failed downloads (default 0)");
+        options.addOption("locked", true, "percentage of 'Ticket is Locked!' replies (default 0)");
+        options.addOption("key", true, "re-encryption key if a request has none (default 'local')");
+        return options;
+    }
+
+    // Server with the settings on the command line
+    static EgaLocalServer create(CommandLine cmd, int port) throws IOException {
+        EgaLocalServer local = new EgaLocalServer(Integer.parseInt(cmd.getOptionValue("port", String.valueOf(port))));
+        local.setFileSize((long) (Double.parseDouble(cmd.getOptionValue("size", "64")) * 1024 * 1024));
+        local.setDatasetFiles(Integer.parseInt(cmd.getOptionValue("files", "8")));
+        local.setBandwidth((long) (Double.parseDouble(cmd.getOptionValue("bandwidth", "0")) * 1024 * 1024));
+        local.setStreamBandwidth((long) (Double.parseDouble(cmd.getOptionValue("streambandwidth", "0")) * 1024 * 1024));
+        local.setLatency(Integer.parseInt(cmd.getOptionValue("latency", "0")));
+        local.setErrorRate(Double.parseDouble(cmd.getOptionValue("errors", "0")) / 100.0);
+        local.setLockedRate(Double.parseDouble(cmd.getOptionValue("locked", "0")) / 100.0);
+        if (cmd.hasOption("key"))
+            local.setKey(cmd.getOptionValue("key"));
+        return local;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Options options = options();
+        CommandLine cmd;
+        try {
+            CommandLineParser parser = new BasicParser();
+            cmd = parser.parse(options, args);
+        } catch (ParseException ex) {
+            System.err.println(ex.getLocalizedMessage());
+            new HelpFormatter().printHelp("EgaLocalServer", options);
+            return;
+        }
+        if (cmd.hasOption("help")) {
+            new HelpFormatter().printHelp("EgaLocalServer", options);
+            return;
+        }
+        final EgaLocalServer local = create(cmd, 8110);
+        local.start();
+        System.out.println("Local EGA server listening on port " + local.getPort() + ". Use the client with:");
+        System.out.println("    java -jar EgaDemoClient.jar -local localhost:"
+                + local.getPort() + " localhost:" + local.getPort() + " http");
+        System.out.println("Dataset " + DATASET + ": " + local.datasetFiles + " file(s) of " + local.fileSize / 1024 / 1024 + " MB.");
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                System.out.println(local.status());
+            }
+        });
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egademoclient;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import uk.ac.embl.ebi.ega.egadbapiwrapper.EgaDBAPIWrapper;
+import utils.BandwidthLimiter;
+import utils.BufferPool;
+
+/**
+ *
+ * @author asenf
+ *
+ * Download to null: fetches tickets over {streams} parallel streams and
+ * discards the data, so the result shows what the network (and server) can
+ * deliver, independent of the local disks. Tickets are read through the
+ * ticket URL (as ranged downloads are), which gives the time to first byte;
+ * if that is not possible (or setViaApi is on) the API's download to null is
+ * used, without one.
+ *
+ * The report has throughput per stream (bytes / time the stream was busy),
+ * the aggregate (all bytes / wall time), the spread between streams, and
+ * time-to-first-byte percentiles.
+ */
+public class EgaNullBenchmark {
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private final EgaDBAPIWrapper api;
+    private final String server;
+    private final int streams;
+    private final String executorMode;
+
+    private final ConcurrentLinkedQueue<long[]> results = new ConcurrentLinkedQueue<>(); // {stream, bytes, ms, ttfb ms (-1: n/a)}
+    private final AtomicInteger failed = new AtomicInteger(0);
+    private double rate = 0; // MB/s, aggregate
+    private final ArrayList<Long> ttfb = new ArrayList<>(); // ms, sorted
+    private boolean viaApi = false;
+
+    public EgaNullBenchmark(EgaDBAPIWrapper api, String server, int streams, String executorMode) {
+        this.api = api;
+        this.server = server;
+        this.streams = Math.max(1, streams);
+        this.executorMode = executorMode;
+    }
+
+    // Download through the API only (its udt/alt settings apply), not the ticket URL
+    public void setViaApi(boolean viaApi) {
+        this.viaApi = viaApi;
+    }
+
+    // Aggregate MB/s of the last run
+    public double getRate() {
+        return this.rate;
+    }
+
+    // Time to first byte (ms) at quantile q (0.5: median) of the last run; -1 if not measured
+    public long getTtfb(double q) {
+        if (this.ttfb.isEmpty()) return -1;
+        return this.ttfb.get((int) Math.min(this.ttfb.size() - 1, Math.max(0, Math.ceil(this.ttfb.size() * q) - 1)));
+    }
+
+    public int getFailed() {
+        return this.failed.get();
+    }
+
+    public String run(final EgaTicketStore store) {
+        final AtomicInteger next = new AtomicInteger(0);
+        int streams_ = Math.min(this.streams, Math.max(1, store.size()));
+        ExecutorService executor = EgaExecutors.newExecutor(this.executorMode, streams_);
+        long time = System.currentTimeMillis();
+        try {
+            ArrayList<Future<Void>> f = new ArrayList<>();
+            for (int s=0; s<streams_; s++) {
+                final int stream = s;
+                f.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        int i;
+                        while ( (i = next.getAndIncrement()) < store.size() )
+                            fetch(stream, store.getTicket(i), store.getFileName(i));
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> one : f)
+                one.get();
+        } catch (InterruptedException | ExecutionException ex) {
+            System.err.println("Null download error: " + ex.getLocalizedMessage());
+        } finally {
+            executor.shutdownNow();
+        }
+        time = System.currentTimeMillis() - time;
+        return report(streams_, time);
+    }
+
+    private void fetch(int stream, String ticket, String name) {
+        String org = "";
+        if (ticket.contains("?org=")) {
+            org = ticket.substring(ticket.indexOf("?org=")+5);
+            ticket = ticket.substring(0, ticket.indexOf("?org="));
+        }
+        long start = System.nanoTime(), ttfb = -1, bytes = 0;
+        boolean viaApi_ = this.viaApi;
+        if (!viaApi_) {
+            HttpURLConnection conn = null;
+            ByteBuffer buf = null;
+            try {
+                buf = BufferPool.get().acquire(BUFFER_SIZE);
+                start = System.nanoTime();
+                conn = EgaSegmentedDownload.open(this.server, ticket, org, 0, -1);
+                int code = conn.getResponseCode();
+                if (code != HttpURLConnection.HTTP_OK && code != HttpURLConnection.HTTP_PARTIAL)
+                    throw new IOException("HTTP " + code);
+                try (InputStream in = conn.getInputStream()) {
+                    ReadableByteChannel net = EgaSegmentedDownload.channel(in);
+                    int read;
+                    while ( (read = net.read(buf)) > 0 ) {
+                        if (ttfb < 0) ttfb = (System.nanoTime() - start) / 1000000L;
+                        BandwidthLimiter.get().acquire(read);
+                        bytes += read;
+                        buf.clear();
+                    }
+                }
+                long expected = conn.getContentLengthLong();
+                if (expected > 0 && bytes < expected) // connection dropped part-way
+                    bytes = 0;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException ex) {
+                if (bytes > 0) { // broken off after data arrived: a failure, not a missing ticket URL
+                    this.failed.incrementAndGet();
+                    System.out.println("Null download failed: " + name + " (stream " + (stream+1) + "): " + ex.getLocalizedMessage());
+                    return;
+                }
+                viaApi_ = true; // No ticket URL: the API's download to null
+            } finally {
+                if (conn != null) conn.disconnect();
+                BufferPool.get().release(buf);
+            }
+        }
+        if (viaApi_) { // no time to first byte
+            ttfb = -1;
+            start = System.nanoTime();
+            String[] ds = this.api.download(ticket, null, null);
+            bytes = -1;
+            try {
+                if (ds != null && ds.length > 0 && !ds[0].equalsIgnoreCase("Ticket is Locked!"))
+                    bytes = Long.parseLong(ds[0]);
+            } catch (NumberFormatException ex_) {
+            }
+        }
+        long ms = Math.max(1, (System.nanoTime() - start) / 1000000L);
+        if (bytes <= 0) {
+            this.failed.incrementAndGet();
+            System.out.println("Null download failed: " + name + " (stream " + (stream+1) + ")");
+            return;
+        }
+        this.results.add(new long[]{stream, bytes, ms, ttfb});
+        System.out.println(String.format("Null download: %s  %.1f MB  %.2f MB/s  (stream %d%s)", name, bytes / 1024.0 / 1024.0,
+                bytes / 1024.0 / 1024.0 / (ms / 1000.0), stream+1, ttfb<0?"":", first byte after " + ttfb + " ms"));
+    }
+
+    private String report(int streams_, long time) {
+        long[] bytes = new long[streams_], busy = new long[streams_];
+        int[] files = new int[streams_];
+        ArrayList<Long> ttfb = this.ttfb;
+        ttfb.clear();
+        long total = 0;
+        for (long[] r : this.results) {
+            int s = (int) r[0];
+            bytes[s] += r[1];
+            busy[s] += r[2];
+            files[s]++;
+            total += r[1];
+            if (r[3] >= 0) ttfb.add(r[3]);
+        }
+        this.rate = total / 1024.0 / 1024.0 / Math.max(0.001, time / 1000.0);
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Null download benchmark: %d file(s), %.1f MB in %.1f s on %d stream(s)%s%n", this.results.size(),
+                total / 1024.0 / 1024.0, time / 1000.0, streams_, this.failed.get()>0?" (" + this.failed.get() + " failed)":""));
+        sb.append(String.format("Aggregate: %.2f MB/s%n", this.rate));
+        sb.append(String.format("%8s %6s %10s %8s%n", "stream", "files", "MB", "MB/s"));
+        ArrayList<Double> rates = new ArrayList<>();
+        for (int s=0; s<streams_; s++) {
+            double r = busy[s]==0?0:bytes[s] / 1024.0 / 1024.0 / (busy[s] / 1000.0);
+            if (files[s] > 0) rates.add(r);
+            sb.append(String.format("%8d %6d %10.1f %8.2f%n", s+1, files[s], bytes[s] / 1024.0 / 1024.0, r));
+        }
+        if (!rates.isEmpty()) {
+            double sum = 0, sq = 0;
+            for (double r : rates) sum += r;
+            double mean = sum / rates.size();
+            for (double r : rates) sq += (r - mean) * (r - mean);
+            double sd = Math.sqrt(sq / rates.size());
+            sb.append(String.format("Spread between streams: min %.2f, max %.2f, mean %.2f MB/s, std. dev. %.2f (%.1f%% of mean)%n",
+                    Collections.min(rates), Collections.max(rates), mean, sd, mean==0?0:100.0 * sd / mean));
+        }
+        if (!ttfb.isEmpty()) {
+            Collections.sort(ttfb);
+            sb.append(String.format("Time to first byte: min %d, median %d, 90%% %d, max %d ms (%d file(s))%n",
+                    ttfb.get(0), ttfb.get(ttfb.size() / 2), ttfb.get((int) Math.min(ttfb.size() - 1, Math.ceil(ttfb.size() * 0.9) - 1)),
+                    ttfb.get(ttfb.size() - 1), ttfb.size()));
+        } else if (!this.results.isEmpty())
+            sb.append("Time to first byte: not measured (downloaded through the API)\n");
+        if (BandwidthLimiter.get().getRate() > 0)
+            sb.append("Note: a bandwidth limit is set (").append(BandwidthLimiter.get().status()).append(")\n");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egademoclient;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import uk.ac.embl.ebi.ega.egadbapiwrapper.EgaDBAPIWrapper;
+import uk.ac.embl.ebi.ega.utils.EgaTicket;
+
+/**
+ *
+ * @author asenf
+ *
+ * End-to-end performance check: starts an EgaLocalServer, logs in and
+ * requests teststream tickets through the API, and downloads them to null
+ * with the client's own transfer code (EgaNullBenchmark) a few times. The
+ * median aggregate throughput and median time to first byte are compared
+ * against fixed limits and against a baseline from an earlier run; the exit
+ * code is 1 if either regressed past the tolerance, or if any download
+ * failed (used by 'ant perftest'). A baseline is only written from a run in
+ * which every download worked.
+ *
+ * With -wan the downloads go through an EgaWanProxy, once for each set of
+ * conditions (e.g. "rtt=20;rtt=150,loss=0.1"); each set has its own results
+ * and baseline entries.
+ *
+ * If the API can't talk to the local server (its info protocol is only
+ * approximated there), the tickets are issued by the server directly; the
+ * downloads are the same either way.
+ */
+public class EgaPerfCheck {
+
+    public static void main(String[] args) throws IOException {
+        if (System.getProperty("ega.ticket.url") == null) // before EgaSegmentedDownload is loaded
+            System.setProperty("ega.ticket.url", "http://{server}" + EgaLocalServer.DOWNLOADS + "{ticket}");
+
+        Options options = EgaLocalServer.options();
+        options.addOption("streams", true, "parallel streams (default 4)");
+        options.addOption("tickets", true, "teststream tickets (default 8)");
+        options.addOption("ticketsize", true, "size of each ticket in MB (default 64)");
+        options.addOption("runs", true, "download runs; the median counts (default 3)");
+        options.addOption("warmup", true, "runs before measuring, not counted (default 1)");
+        options.addOption("minrate", true, "fail below this aggregate MB/s (default: no limit)");
+        options.addOption("maxttfb", true, "fail above this median time to first byte in ms (default: no limit)");
+        options.addOption("baseline", true, "baseline file; created if missing");
+        options.addOption("tolerance", true, "allowed regression against the baseline in percent (default 20)");
+        options.addOption("ttfbslack", true, "allowed time to first byte increase in ms on top of the tolerance (default 20)");
+        options.addOption("update", false, "write this run's results to the baseline");
+        options.addOption("result", true, "write this run's results to a file");
+        options.addOption("wan", true, "download through EgaWanProxy under these conditions; ';' separates conditions to sweep");
+        CommandLine cmd;
+        try {
+            CommandLineParser parser = new BasicParser();
+            cmd = parser.parse(options, args);
+        } catch (ParseException ex) {
+            System.err.println(ex.getLocalizedMessage());
+            new HelpFormatter().printHelp("EgaPerfCheck", options);
+            System.exit(2);
+            return;
+        }
+        if (cmd.hasOption("help")) {
+            new HelpFormatter().printHelp("EgaPerfCheck", options);
+            return;
+        }
+
+        int streams = Integer.parseInt(cmd.getOptionValue("streams", "4"));
+        int count = Integer.parseInt(cmd.getOptionValue("tickets", "8"));
+        long size = (long) (Double.parseDouble(cmd.getOptionValue("ticketsize", "64")) * 1024 * 1024);
+        int runs = Math.max(1, Integer.parseInt(cmd.getOptionValue("runs", "3")));
+        int warmup = Math.max(0, Integer.parseInt(cmd.getOptionValue("warmup", "1")));
+
+        // Conditions to sweep through the WAN proxy; null: direct
+        String[] wan = cmd.hasOption("wan")?cmd.getOptionValue("wan").split(";"):new String[]{null};
+
+        EgaLocalServer local = EgaLocalServer.create(cmd, 0);
+        local.start();
+        EgaWanProxy proxy = null;
+        boolean ok = true, clean = true; // clean: every download worked, so the results may become a baseline
+        try {
+            String host = "localhost:" + local.getPort();
+            EgaDBAPIWrapper api = new EgaDBAPIWrapper(host, host, false);
+            EgaTicketStore store = tickets(api, local, count, size);
+            if (cmd.hasOption("wan")) {
+                proxy = new EgaWanProxy(0, host);
+                host = "localhost:" + proxy.getPort(); // downloads go through the proxy
+            }
+            System.out.println(store.size() + " ticket(s) of " + size / 1024 / 1024 + " MB on " + host + "; " + runs + " run(s) on " + streams + " stream(s).");
+
+            for (int r=0; r<warmup; r++) { // JIT and server caches; not counted
+                System.out.println("Warm-up run " + (r+1) + " of " + warmup);
+                new EgaNullBenchmark(api, host, streams, EgaExecutors.POOL).run(store);
+            }
+
+            Properties baseline = null;
+            File baselineFile = cmd.hasOption("baseline")?new File(cmd.getOptionValue("baseline")):null;
+            if (baselineFile != null && baselineFile.exists() && !cmd.hasOption("update")) {
+                baseline = new Properties();
+                try (InputStream in = new FileInputStream(baselineFile)) {
+                    baseline.load(in);
+                }
+            }
+            Properties result = new Properties();
+            for (String conditions : wan) {
+                String suffix = "";
+                if (conditions != null) {
+                    proxy.setConditions(conditions.trim());
+                    suffix = "[" + proxy.getConditions() + "]";
+                    System.out.println("WAN conditions: " + proxy.getConditions());
+                }
+                double[] rate = new double[runs];
+                long[] ttfb = new long[runs];
+                int failed = 0, measured = 0;
+                for (int r=0; r<runs; r++) {
+                    EgaNullBenchmark benchmark = new EgaNullBenchmark(api, host, streams, EgaExecutors.POOL);
+                    System.out.println(benchmark.run(store));
+                    rate[r] = benchmark.getRate();
+                    long t = benchmark.getTtfb(0.5);
+                    if (t >= 0) // -1: nothing measured in this run
+                        ttfb[measured++] = t;
+                    failed += benchmark.getFailed();
+                }
+                Arrays.sort(rate);
+                Arrays.sort(ttfb, 0, measured);
+                double medianRate = rate[runs / 2];
+                long medianTtfb = measured>0?ttfb[measured / 2]:-1;
+                System.out.println(String.format("Result%s: %.2f MB/s aggregate, %d ms median time to first byte (median of %d run(s)); %d failed download(s).",
+                        suffix.length()==0?"":" " + suffix, medianRate, medianTtfb, runs, failed));
+
+                if (failed > 0 || measured < runs) {
+                    System.out.println("FAILED: " + failed + " download(s) failed, " + (runs - measured) + " run(s) without a time to first byte.");
+                    ok = false;
+                    clean = false;
+                }
+                ok &= check(cmd, baseline, suffix, medianRate, medianTtfb);
+                result.setProperty("rate" + suffix, String.valueOf(Math.round(medianRate * 100) / 100.0));
+                result.setProperty("ttfb" + suffix, String.valueOf(medianTtfb));
+            }
+            System.out.println(local.status());
+            if (proxy != null)
+                System.out.println(proxy.status());
+
+            if (cmd.hasOption("result"))
+                store(result, new File(cmd.getOptionValue("result")));
+            if (baselineFile != null && (cmd.hasOption("update") || !baselineFile.exists())) {
+                if (clean) {
+                    store(result, baselineFile);
+                    System.out.println("Baseline written to " + baselineFile.getPath());
+                } else
+                    System.out.println("Baseline not written: not every download worked.");
+            }
+        } finally {
+            if (proxy != null) proxy.close();
+            local.stop();
+        }
+        System.exit(ok?0:1);
+    }
+
+    // Teststream tickets, through the API if possible
+    private static EgaTicketStore tickets(EgaDBAPIWrapper api, EgaLocalServer local, int count, long size) throws IOException {
+        String label = "PerfCheck" + String.valueOf(new Random().nextInt());
+        EgaTicketStore store = new EgaTicketStore(count);
+        try {
+            if (api.login("local", "local".toCharArray())) {
+                for (int i=0; i<count; i++)
+                    api.requestByID(String.valueOf(size), "teststream", "n", label, "");
+                EgaTicket[] ds = api.listRequest(label);
+                if (ds != null)
+                    EgaDemoClient.addTickets(store, ds, null);
+            }
+        } catch (RuntimeException ex) {
+            System.err.println("API error: " + ex.getLocalizedMessage());
+        }
+        if (store.size() > 0)
+            return store;
+
+        System.out.println("The API could not request tickets from the local server - using tickets issued by the server directly.");
+        for (int i=0; i<count; i++) {
+            List<String> issued = local.request("teststream", String.valueOf(size), "", label);
+            for (String t : issued)
+                store.add(t, "teststream_" + i + ".cip", String.valueOf(size));
+        }
+        return store;
+    }
+
+    // Fixed limits, and the baseline of the same conditions if there is one
+    private static boolean check(CommandLine cmd, Properties baseline, String suffix, double rate, long ttfb) {
+        boolean ok = true;
+        if (cmd.hasOption("minrate") && rate < Double.parseDouble(cmd.getOptionValue("minrate"))) {
+            System.out.println(String.format("FAILED: throughput %.2f MB/s is below the minimum of %s MB/s.", rate, cmd.getOptionValue("minrate")));
+            ok = false;
+        }
+        if (cmd.hasOption("maxttfb") && ttfb > Long.parseLong(cmd.getOptionValue("maxttfb"))) {
+            System.out.println("FAILED: time to first byte " + ttfb + " ms is above the maximum of " + cmd.getOptionValue("maxttfb") + " ms.");
+            ok = false;
+        }
+        if (baseline != null && baseline.getProperty("rate" + suffix) != null) {
+            double tolerance = Double.parseDouble(cmd.getOptionValue("tolerance", "20")) / 100.0;
+            long slack = Long.parseLong(cmd.getOptionValue("ttfbslack", "20"));
+            double baseRate = Double.parseDouble(baseline.getProperty("rate" + suffix));
+            long baseTtfb = Long.parseLong(baseline.getProperty("ttfb" + suffix, "-1"));
+            if (baseRate <= 0 || baseTtfb < 0) { // recorded from a run that did not work
+                System.out.println(String.format("FAILED: the baseline for these conditions is not valid (%.2f MB/s, %d ms) - rerun with -update.",
+                        baseRate, baseTtfb));
+                return false;
+            }
+            if (rate < baseRate * (1 - tolerance)) {
+                System.out.println(String.format("FAILED: throughput %.2f MB/s regressed more than %.0f%% from the baseline (%.2f MB/s).",
+                        rate, tolerance * 100, baseRate));
+                ok = false;
+            }
+            if (baseTtfb >= 0 && ttfb > baseTtfb * (1 + tolerance) + slack) {
+                System.out.println(String.format("FAILED: time to first byte %d ms regressed more than %.0f%% + %d ms from the baseline (%d ms).",
+                        ttfb, tolerance * 100, slack, baseTtfb));
+                ok = false;
+            }
+            if (ok)
+                System.out.println(String.format("Within %.0f%% of the baseline (%.2f MB/s, %d ms).", tolerance * 100, baseRate, baseTtfb));
+        } else if (baseline != null)
+            System.out.println("No baseline for these conditions" + (suffix.length()==0?"":" " + suffix) + " - rerun with -update to add it.");
+        return ok;
+    }
+
+    private static void store(Properties p, File file) throws IOException {
+        if (file.getAbsoluteFile().getParentFile() != null)
+            file.getAbsoluteFile().getParentFile().mkdirs();
+        try (OutputStream out = new FileOutputStream(file)) {
+            p.store(out, "EgaPerfCheck: aggregate MB/s, median time to first byte (ms)");
+        }
+    }
+}
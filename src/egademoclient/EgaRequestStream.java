@@ -0,0 +1,115 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egademoclient;
+
+import java.util.HashSet;
+import uk.ac.embl.ebi.ega.egadbapiwrapper.EgaDBAPIWrapper;
+import uk.ac.embl.ebi.ega.utils.EgaFile;
+import uk.ac.embl.ebi.ega.utils.EgaTicket;
+
+/**
+ *
+ * @author asenf
+ *
+ * Creates a request and feeds its tickets into an open EgaTicketStore while
+ * the scheduler is already downloading from it. A dataset is requested file
+ * by file (all under the same label), so the first tickets exist after one
+ * round trip instead of after the whole dataset has been requested. Each
+ * request's result is resolved to tickets with listTicketDetails; a final
+ * listRequest on the label picks up anything that could not be resolved that
+ * way. The store is closed when all tickets have been added.
+ */
+public class EgaRequestStream implements Runnable {
+
+    private final EgaDBAPIWrapper api;
+    private final String type, id, reKey, descriptor, target;
+    private final EgaTicketStore store;
+    private final EgaDownloadJournal journal;
+
+    private final HashSet<String> seen = new HashSet<>();
+    private volatile int requested = 0;
+
+    public EgaRequestStream(EgaDBAPIWrapper api, String type, String id, String reKey, String descriptor, String target,
+                            EgaTicketStore store, EgaDownloadJournal journal) {
+        this.api = api;
+        this.type = type;
+        this.id = id;
+        this.reKey = reKey;
+        this.descriptor = descriptor;
+        this.target = target;
+        this.store = store;
+        this.journal = journal;
+    }
+
+    public int getRequested() {
+        return this.requested;
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (this.type.equalsIgnoreCase("dataset")) {
+                EgaFile[] files = this.api.listDatasetFiles(this.id);
+                if (files == null || files.length == 0) {
+                    System.out.println("No files found in dataset " + this.id);
+                    return;
+                }
+                System.out.println("Requesting " + files.length + " file(s) of " + this.id + " as '" + this.descriptor + "', downloading as they arrive.");
+                for (EgaFile file : files) {
+                    if (file.getStatus() != null && !file.getStatus().equalsIgnoreCase("available"))
+                        continue; // pending files can't be requested yet
+                    request(file.getFileID(), "file");
+                }
+            } else
+                request(this.id, this.type);
+
+            // Anything the request results didn't resolve to
+            EgaTicket[] all = this.api.listRequest(this.descriptor);
+            if (all != null)
+                for (EgaTicket t : all)
+                    add(t);
+            System.out.println("Request '" + this.descriptor + "' complete: " + this.requested + " ticket(s).");
+        } catch (Throwable t) {
+            System.err.println("Request error: " + t.getLocalizedMessage());
+        } finally {
+            this.store.close();
+        }
+    }
+
+    private void request(String id_, String type_) {
+        String[] ds = this.api.requestByID(id_, type_, this.reKey, this.descriptor, this.target);
+        if (ds == null || ds.length == 0 || (ds.length == 1 && (ds[0].equalsIgnoreCase("-1") || ds[0].equalsIgnoreCase("Access not Permitted")))) {
+            System.out.println("No file(s) requested for " + type_ + " " + id_ + (ds!=null&&ds.length==1?" (" + ds[0] + ")":""));
+            return;
+        }
+        for (String d : ds) {
+            EgaTicket[] details = d==null?null:this.api.listTicketDetails(d);
+            if (details != null)
+                for (EgaTicket t : details)
+                    add(t);
+        }
+    }
+
+    private void add(EgaTicket t) {
+        String ticket = t.getTicket();
+        if (ticket == null || ticket.length() <= 10 || !this.seen.add(ticket))
+            return;
+        this.requested++;
+        if (this.journal != null && this.journal.isVerified(ticket))
+            return;
+        this.store.add(t);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egademoclient;
+
+import java.util.Random;
+
+/**
+ *
+ * @author asenf
+ *
+ * Decides if, and after how long, a failed download is attempted again.
+ *   TRANSIENT - I/O errors, failed verification: exponential backoff with full
+ *               jitter (random delay up to base * 2^attempt, capped), so failures
+ *               of many threads at once don't turn into a burst of re-requests
+ *   LOCKED    - 'Ticket is Locked!': the ticket is busy on the server side;
+ *               wait a fixed, longer interval (plus jitter), fewer attempts
+ *   SKIP      - the server said not to retry this ticket: give up at once
+ * Subclass and override delay() for a different policy.
+ */
+public class EgaRetryPolicy {
+
+    public enum Failure { TRANSIENT, LOCKED, SKIP }
+
+    private final int maxAttempts, maxLockedAttempts;
+    private final long base, cap, lockedDelay; // ms
+    private final Random random = new Random();
+
+    // Defaults: same attempt budget as before (20), 2 s .. 5 min backoff; locked: 5 x 60 s
+    public EgaRetryPolicy() {
+        this(20, 2000, 300000, 5, 60000);
+    }
+
+    public EgaRetryPolicy(int maxAttempts, long base, long cap, int maxLockedAttempts, long lockedDelay) {
+        this.maxAttempts = maxAttempts;
+        this.base = base;
+        this.cap = cap;
+        this.maxLockedAttempts = maxLockedAttempts;
+        this.lockedDelay = lockedDelay;
+    }
+
+    public int maxAttempts() {
+        return this.maxAttempts;
+    }
+
+    // Delay in ms before the next attempt, or -1 to give up. 'attempts' is the number of attempts made so far
+    public long delay(Failure failure, int attempts) {
+        switch (failure) {
+            case SKIP:
+                return -1;
+            case LOCKED:
+                if (attempts >= this.maxLockedAttempts) return -1;
+                return this.lockedDelay + nextLong(this.lockedDelay / 2);
+            default:
+                if (attempts >= this.maxAttempts) return -1;
+                long ceiling = this.base << Math.min(attempts - 1, 20);
+                return nextLong(Math.min(this.cap, ceiling)); // full jitter
+        }
+    }
+
+    private synchronized long nextLong(long bound) {
+        return bound<=0?0:(long) (this.random.nextDouble() * bound);
+    }
+}
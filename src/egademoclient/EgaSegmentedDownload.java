@@ -0,0 +1,763 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egademoclient;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import uk.ac.embl.ebi.ega.egadbapiwrapper.EgaDBAPIWrapper;
+import utils.BandwidthLimiter;
+import utils.BufferPool;
+import utils.ResumableMD5;
+
+/**
+ *
+ * @author asenf
+ *
+ * Downloads one ticket as a number of byte ranges over several parallel
+ * connections. The '.egastream' file is preallocated to the full size and each
+ * range is written into its place; once all ranges are in, the whole file is
+ * verified and renamed.
+ *
+ * Every completed range is recorded (with its MD5) in a '.egastate' file next
+ * to the partial file, after the range data has been forced to disk. If the
+ * download is interrupted, the next attempt re-checks each recorded range
+ * against the partial file and only fetches what is missing or damaged.
+ *
+ * The file MD5 is computed while the data is written: the connection whose
+ * segment starts where the hashed prefix ends hashes its bytes as they
+ * arrive; segments that complete out of order are hashed (read back while
+ * still in the page cache) as soon as the prefix reaches them. The hash
+ * state is saved in the state file with every step, so after a resume the
+ * hashed prefix is neither verified nor hashed again.
+ *
+ * With striping (EgaServerBalancer) the segments are spread over all data
+ * servers in proportion to their measured speed.
+ *
+ * With a decryption key set, a .cip ticket is decrypted as it arrives and
+ * only plaintext is written (the target is the plaintext file; all ranges
+ * are in plaintext coordinates, the 16 byte IV is taken from the probe). The
+ * final check reads the plaintext once and computes both checksums: the
+ * encrypted MD5 (by re-encrypting in memory) against X-Ega-MD5, and the
+ * plaintext MD5 against X-Ega-Plain-MD5 if the server sends it - otherwise
+ * it is stored next to the file as '{file}.md5'.
+ *
+ * This requires a data server that answers ranged GET requests on the ticket
+ * URL (206 Partial Content) and sends the file MD5 (X-Ega-MD5). If it does
+ * not, download() returns null and the caller falls back to the single-stream
+ * API download.
+ */
+public class EgaSegmentedDownload {
+
+    // Ticket URL on the data server; override with -Dega.ticket.url=...
+    public static final String TICKET_URL = System.getProperty("ega.ticket.url");
+    private static final String TICKET_PATH = "://{server}/ega/rest/ds/v2/downloads/{ticket}";
+
+    // Only files at least this large are split
+    public static final long MIN_FILE_SIZE = 1024L * 1024L * 1024L;
+    private static final long MIN_SEGMENT = 16L * 1024L * 1024L;
+    private static final long MAX_SEGMENT = 512L * 1024L * 1024L;
+    private static final int SEGMENT_RETRIES = 3;
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    // Bytes per network read of a ticket URL response (set by 'autotune')
+    private static volatile int readSize = 64 * 1024;
+
+    // Servers that answered a ranged request with the whole file - not probed again
+    private static final Set<String> noRanges = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final String server, ticket, org;
+    private final File target;
+    private final int connections;
+    private final AtomicLong bytes = new AtomicLong(0);
+    private boolean verified = false;
+    private EgaCircuitBreaker breaker = null;
+    private boolean probe = false; // the half-open probe of the breaker for 'server'
+    private FileOutputStream state = null;
+    private EgaFileSink sink = null;
+    private String executorMode = EgaExecutors.POOL;
+    private EgaDBAPIWrapper api = null;  // decrypt on the fly: set with key
+    private String key = null;
+    private SecretKeySpec secret = null;
+    private byte[] iv = null;
+
+    // Incremental hashing: all bytes before 'frontier' are hashed. 'hash' covers
+    // the data as served (ciphertext, including the IV, when decrypting), and
+    // 'plainHash' the decrypted data
+    private final Object hashLock = new Object();
+    private ResumableMD5 hash = null, plainHash = null;
+    private long frontier = 0;
+    private final TreeMap<Long, Long> unhashed = new TreeMap<>(); // complete ranges beyond the frontier
+
+    public EgaSegmentedDownload(String server, String ticket, String org, File target, int connections) {
+        this.server = server;
+        this.ticket = ticket;
+        this.org = org;
+        this.target = target;
+        this.connections = connections;
+    }
+
+    // Segment size depends on file size: about 4 segments per connection, within [16MB, 512MB]
+    public static long segmentSize(long size, int connections) {
+        long seg = size / (Math.max(1, connections) * 4L);
+        seg -= seg % EgaFileSink.ALIGN; // segments start on block boundaries (direct I/O)
+        return Math.max(MIN_SEGMENT, Math.min(MAX_SEGMENT, seg));
+    }
+
+    public long getBytes() {
+        return this.bytes.get();
+    }
+
+    public void setExecutorMode(String executorMode) {
+        this.executorMode = executorMode;
+    }
+
+    // Record the outcome of every request per data server; 'probe': this
+    // download was let through as the half-open probe for the primary server
+    public void setBreaker(EgaCircuitBreaker breaker, boolean probe) {
+        this.breaker = breaker;
+        this.probe = probe;
+    }
+
+    // Did the finished file match the server's checksum(s)?
+    public boolean isVerified() {
+        return this.verified;
+    }
+
+    // Decrypt while downloading; 'target' is then the plaintext file
+    public void setDecrypt(EgaDBAPIWrapper api, String key) throws IOException {
+        try {
+            this.secret = EgaChunkedDecrypt.secret(key);
+        } catch (GeneralSecurityException ex) {
+            throw new IOException(ex);
+        }
+        this.api = api;
+        this.key = key;
+    }
+
+    // Is there an interrupted download of this target that can be resumed?
+    public static boolean canResume(File target) {
+        return stateFile(target).exists();
+    }
+
+    private static File stateFile(File target) {
+        return new File(target.getPath() + ".egastate");
+    }
+
+    // Same result format as EgaDBAPIWrapper.download(): { path, "Success" }, or null if ranges are not supported
+    public String[] download() throws IOException {
+        // Step 1: Probe - does the server accept ranges, and how large is the file?
+        if (noRanges.contains(this.server))
+            return null;
+        // (when decrypting: the IV plus enough data to check the key derivation)
+        boolean decrypting = this.secret != null;
+        int offset = decrypting?EgaChunkedDecrypt.IV_SIZE:0; // file position = server position - offset
+        HttpURLConnection probe = open(this.server, 0, decrypting?offset + EgaChunkedDecrypt.PROBE_SIZE - 1:0);
+        long total;
+        String md5, plainMd5 = null;
+        try {
+            int code = probe.getResponseCode();
+            if (code == HttpURLConnection.HTTP_OK) // Range header ignored: the server can't do this
+                noRanges.add(this.server);
+            if (code != HttpURLConnection.HTTP_PARTIAL) // e.g. 404: unknown ticket - only this one
+                return null;
+            String range = probe.getHeaderField("Content-Range"); // bytes 0-0/{total}
+            if (range == null || !range.contains("/"))
+                return null;
+            total = Long.parseLong(range.substring(range.lastIndexOf("/")+1).trim());
+            md5 = probe.getHeaderField("X-Ega-MD5");
+            if (md5 == null) { // the whole file could not be verified
+                System.out.println("No checksum for " + this.target.getName() + " on the ticket URL - not using ranged download.");
+                return null;
+            }
+            if (decrypting) {
+                plainMd5 = probe.getHeaderField("X-Ega-Plain-MD5");
+                byte[] head = new byte[(int) Math.min(offset + EgaChunkedDecrypt.PROBE_SIZE, total)];
+                if (head.length <= offset)
+                    return new String[]{"File too short to decrypt", "Failed"};
+                try (DataInputStream in = new DataInputStream(probe.getInputStream())) {
+                    in.readFully(head);
+                }
+                this.iv = Arrays.copyOf(head, offset);
+                try {
+                    if (!EgaChunkedDecrypt.verifyKey(this.api, this.key, this.secret, head, this.target.getAbsoluteFile().getParentFile())) {
+                        System.out.println("Can't decrypt " + this.target.getName() + " on the fly (key check failed).");
+                        return null;
+                    }
+                } catch (GeneralSecurityException ex) {
+                    throw new IOException(ex);
+                }
+            }
+        } finally {
+            probe.disconnect();
+        }
+        if (this.breaker != null) // the server answered; from here on its segments count
+            this.breaker.record(this.server, false, this.probe);
+        final long length = total - offset; // bytes on disk
+
+        // Step 2: Check what is already there, then (pre)allocate the partial file
+        File partial = new File(this.target.getPath() + ".egastream");
+        ArrayList<long[]> done = resume(partial, length, md5);
+        try {
+            this.sink = new EgaFileSink(partial, length);
+        } catch (IOException ex) {
+            this.state.close();
+            throw ex;
+        }
+        this.sink.setLog(this.state);
+        long have = 0;
+        for (long[] range : done)
+            have += range[1] - range[0] + 1;
+        this.bytes.set(have);
+
+        // Step 3: Fetch all missing segments in parallel, each into its place in the file
+        long segment = segmentSize(length, this.connections);
+        final ConcurrentLinkedQueue<long[]> segments = new ConcurrentLinkedQueue<>();
+        long from = 0;
+        for (long[] range : done) { // gaps between verified ranges
+            split(segments, from, range[0], segment);
+            from = range[1] + 1;
+        }
+        split(segments, from, length, segment);
+        System.out.println("Segmented download: " + this.target.getName() + " " + segments.size() + " segments of " +
+                (segment/1024/1024) + " MB on " + this.connections + " connections" +
+                (have>0?" (resuming: " + have + " of " + length + " bytes verified)":"") + (decrypting?", decrypting":""));
+
+        ExecutorService pool = EgaExecutors.newExecutor(this.executorMode, this.connections);
+        boolean ok = true;
+        try {
+            ArrayList<Future<Boolean>> f = new ArrayList<>();
+            for (int i=0; i<this.connections; i++) {
+                f.add(pool.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        long[] seg;
+                        while ( (seg = segments.poll()) != null ) {
+                            if (!fetch(seg[0], seg[1]))
+                                return false;
+                        }
+                        return true;
+                    }
+                }));
+            }
+            for (Future<Boolean> one : f) {
+                try {
+                    ok &= one.get();
+                } catch (InterruptedException | ExecutionException ex) {
+                    System.err.println("Segment error: " + ex.getLocalizedMessage());
+                    ok = false;
+                }
+            }
+            if (ok) {
+                synchronized (this.hashLock) {
+                    advance(); // ranges verified at resume, if nothing was fetched after them
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+            try {
+                this.sink.close(); // completed ranges reach the state file here at the latest
+            } finally {
+                this.state.close();
+            }
+        }
+        if (!ok) // Partial file and state are kept for the next attempt
+            return new String[]{"Segmented download failed", "Failed"};
+
+        // Step 4: Verify whole file, then rename
+        if (partial.length() != length)
+            return new String[]{"Size mismatch", "Failed"};
+        if (decrypting) {
+            String error = verifyDecrypted(partial, md5, plainMd5);
+            if (error != null) {
+                System.out.println(error + ": " + this.target.getName());
+                stateFile(this.target).delete(); // start over next time
+                return new String[]{error, "Failed"};
+            }
+        } else if (!md5.equalsIgnoreCase(this.frontier==length?this.hash.hex():md5(partial))) {
+            System.out.println("MD5 mismatch: " + this.target.getName());
+            stateFile(this.target).delete(); // start over next time
+            return new String[]{"MD5 mismatch", "Failed"};
+        }
+        this.verified = true;
+        try {
+            EgaFileSink.commit(partial, this.target);
+        } catch (IOException ex) {
+            System.err.println("Rename of " + partial.getName() + " failed: " + ex.getLocalizedMessage());
+            return new String[]{"Rename failed", "Failed"};
+        }
+        stateFile(this.target).delete();
+
+        return new String[]{this.target.getPath(), "Success"};
+    }
+
+    // Split [from, to) into segments
+    private static void split(ConcurrentLinkedQueue<long[]> segments, long from, long to, long segment) {
+        for (long pos = from; pos < to; pos += segment)
+            segments.add(new long[]{pos, Math.min(to, pos + segment) - 1});
+    }
+
+    // Read the state file of an earlier attempt; returns the ranges (sorted) whose
+    // data in the partial file still matches the recorded MD5. Ranges inside the
+    // saved hashed prefix are taken as they are (they were hashed when written).
+    // Starts a new state file if there is none, or if it belongs to a different
+    // version of the file.
+    private ArrayList<long[]> resume(File partial, long total, String md5) throws IOException {
+        ArrayList<long[]> done = new ArrayList<>();
+        File stateFile = stateFile(this.target);
+        String header = "EGASTATE " + total + " " + md5 + (this.secret!=null?" plain":"");
+
+        boolean valid = false;
+        ArrayList<String[]> recorded = new ArrayList<>();
+        String[] hashed = null; // last saved hash state: H {frontier} {state} [{plain state}]
+        if (stateFile.exists() && partial.exists() && partial.length() == total) {
+            try (BufferedReader in = new BufferedReader(new FileReader(stateFile))) {
+                valid = header.equals(in.readLine());
+                String line;
+                while (valid && (line = in.readLine()) != null) {
+                    String[] fields = line.trim().split(" ");
+                    if (fields[0].equals("H")) {
+                        if (fields.length == (this.secret!=null?4:3)) hashed = fields;
+                    } else if (fields.length == 3) recorded.add(fields); // a torn last line is ignored
+                }
+            }
+        }
+
+        // The saved hash state is only usable if the recorded ranges cover its prefix
+        long hashFrontier = 0;
+        ResumableMD5 hash_ = null, plainHash_ = null;
+        if (valid && hashed != null) {
+            try {
+                hashFrontier = Long.parseLong(hashed[1]);
+                hash_ = ResumableMD5.fromState(hashed[2]);
+                plainHash_ = this.secret!=null?ResumableMD5.fromState(hashed[3]):null;
+                TreeMap<Long, Long> ranges = new TreeMap<>();
+                for (String[] fields : recorded)
+                    ranges.put(Long.parseLong(fields[0]), Long.parseLong(fields[1]));
+                long covered = 0;
+                Long to;
+                while (covered < hashFrontier && (to = ranges.get(covered)) != null)
+                    covered = to + 1;
+                if (covered < hashFrontier) hashFrontier = 0;
+            } catch (IllegalArgumentException ex) {
+                hashFrontier = 0;
+            }
+        }
+
+        if (valid) {
+            try (EgaFileSink.Reader in = new EgaFileSink.Reader(partial)) {
+                for (int r=0; r<recorded.size(); r++) {
+                    String[] fields = recorded.get(r);
+                    long from = Long.parseLong(fields[0]), to = Long.parseLong(fields[1]);
+                    if (to < hashFrontier || (to < total && fields[2].equalsIgnoreCase(md5(in, from, to))))
+                        done.add(new long[]{from, to, r});
+                    else
+                        System.out.println("Resume: range " + from + "-" + to + " of " + this.target.getName() + " failed verification; re-fetching.");
+                }
+            }
+            Collections.sort(done, new Comparator<long[]>() {
+                @Override
+                public int compare(long[] a, long[] b) {
+                    return Long.compare(a[0], b[0]);
+                }
+            });
+            // Drop overlapping ranges (if the segment size changed between attempts)
+            long next = 0;
+            for (int i=0; i<done.size(); i++) {
+                if (done.get(i)[0] < next) done.remove(i--);
+                else next = done.get(i)[1] + 1;
+            }
+        }
+
+        // Hashing continues from the saved prefix; verified ranges beyond it are hashed when it gets there
+        if (hashFrontier > 0) {
+            this.hash = hash_;
+            this.plainHash = plainHash_;
+            this.frontier = hashFrontier;
+            System.out.println("Resume: " + hashFrontier + " bytes of " + this.target.getName() + " already hashed.");
+        } else {
+            this.hash = new ResumableMD5();
+            if (this.secret != null) {
+                this.hash.update(this.iv, 0, this.iv.length); // the served file starts with the IV
+                this.plainHash = new ResumableMD5();
+            }
+            this.frontier = 0;
+        }
+        for (long[] range : done)
+            if (range[0] >= this.frontier) this.unhashed.put(range[0], range[1]);
+
+        // Re-write the state file with only the verified ranges
+        this.state = new FileOutputStream(stateFile, false);
+        StringBuilder sb = new StringBuilder(header).append("\n");
+        for (long[] range : done)
+            sb.append(range[0]).append(" ").append(range[1]).append(" ").append(recorded.get((int)range[2])[2]).append("\n");
+        if (this.frontier > 0)
+            sb.append(hashLine()).append("\n");
+        this.state.write(sb.toString().getBytes("UTF-8"));
+        this.state.getFD().sync();
+
+        return done;
+    }
+
+    private String hashLine() {
+        return "H " + this.frontier + " " + this.hash.state() + (this.plainHash!=null?" " + this.plainHash.state():"");
+    }
+
+    // Save the hash state (after the ranges it covers have been recorded)
+    private void recordHash(String line) throws IOException {
+        this.sink.log(line);
+    }
+
+    // Hash the complete ranges that continue the hashed prefix; call with hashLock held
+    private void advance() throws IOException {
+        boolean moved = false;
+        Long to;
+        while ( (to = this.unhashed.remove(this.frontier)) != null ) {
+            ResumableMD5 hash_ = this.hash.copy(), plainHash_ = this.plainHash==null?null:this.plainHash.copy();
+            try {
+                hashRange(this.frontier, to);
+            } catch (IOException ex) { // stop hashing; the file is read in full at the end
+                this.hash = hash_;
+                this.plainHash = plainHash_;
+                System.err.println("Incremental MD5 of " + this.target.getName() + " stopped: " + ex.getLocalizedMessage());
+                break;
+            }
+            this.frontier = to + 1;
+            moved = true;
+        }
+        if (moved)
+            recordHash(hashLine());
+    }
+
+    // Read back a range that was written out of order, and add it to the hash(es)
+    private void hashRange(long from, long to) throws IOException {
+        ByteBuffer buf = null;
+        try {
+            buf = BufferPool.get().acquire(BUFFER_SIZE);
+            Cipher cipher = this.secret==null?null:decryptor(from); // re-encrypts for the served-data hash
+            long pos = from;
+            while (pos <= to) {
+                buf.clear();
+                buf.limit((int)Math.min(buf.capacity(), to - pos + 1));
+                int read = this.sink.read(buf, pos);
+                if (read <= 0) throw new IOException("Can't read back " + pos + "-" + to);
+                buf.flip();
+                if (cipher != null) {
+                    this.plainHash.update(buf.duplicate());
+                    cipher.update(buf.duplicate(), buf.duplicate()); // in place
+                }
+                this.hash.update(buf);
+                pos += read;
+            }
+        } catch (GeneralSecurityException ex) {
+            throw new IOException(ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        } finally {
+            BufferPool.get().release(buf);
+        }
+    }
+
+    // Record a completed range; the sink saves it once its data is on disk
+    private void record(long from, long to, String md5) throws IOException {
+        this.sink.log(from + " " + to + " " + md5);
+    }
+
+    // One range, re-tried a few times
+    private boolean fetch(long from, long to) {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException ex) {
+            return false;
+        }
+        int offset = this.secret==null?0:EgaChunkedDecrypt.IV_SIZE;
+        for (int attempt = 0; attempt < SEGMENT_RETRIES; attempt++) {
+            long pos = from;
+            md.reset();
+            // Does this segment continue the hashed prefix? Then hash it while it streams
+            boolean hashing;
+            ResumableMD5 hash_ = null, plainHash_ = null;
+            synchronized (this.hashLock) {
+                hashing = (from == this.frontier);
+                if (hashing) { // to roll back if the attempt fails
+                    hash_ = this.hash.copy();
+                    plainHash_ = this.plainHash==null?null:this.plainHash.copy();
+                }
+            }
+            // With striping, every segment may come from a different data server
+            EgaServerBalancer balancer = EgaServerBalancer.active();
+            String server_ = balancer==null?this.server:balancer.pick();
+            if (!server_.equals(this.server) && (noRanges.contains(server_) || (this.breaker != null && !this.breaker.allow(server_))))
+                server_ = this.server;
+            boolean probe_ = !server_.equals(this.server) && this.breaker != null && this.breaker.isHalfOpen(server_);
+            Boolean failure = null; // outcome for the circuit breaker
+            long time = System.currentTimeMillis();
+            HttpURLConnection conn = null;
+            ByteBuffer buf = null;
+            try {
+                // Network reads are small; they are collected into WRITE_SIZE blocks for the disk
+                buf = BufferPool.get().acquire(EgaFileSink.WRITE_SIZE);
+                conn = open(server_, from + offset, to + offset);
+                if (conn.getResponseCode() != HttpURLConnection.HTTP_PARTIAL)
+                    throw new IOException("Range not served: " + conn.getResponseCode());
+                Cipher cipher = this.secret==null?null:decryptor(from); // key stream starting at 'from'
+                try (InputStream in = conn.getInputStream()) {
+                    ReadableByteChannel net = channel(in);
+                    int read;
+                    while (pos + buf.position() <= to) {
+                        buf.limit((int)Math.min(buf.capacity(), to - pos + 1));
+                        if ( (read = net.read(buf)) <= 0 ) break;
+                        BandwidthLimiter.get().acquire(read); // shared by all streams
+                        if (buf.hasRemaining())
+                            continue;
+                        int fill = buf.position();
+                        buf.flip();
+                        if (hashing)
+                            this.hash.update(buf.duplicate()); // as served
+                        if (cipher != null)
+                            cipher.update(buf.duplicate(), buf.duplicate()); // in place
+                        if (hashing && this.plainHash != null)
+                            this.plainHash.update(buf.duplicate());
+                        md.update(buf.duplicate());
+                        this.sink.write(buf, pos);
+                        this.bytes.addAndGet(fill);
+                        pos += fill;
+                        buf.clear();
+                    }
+                }
+                // Let go of the transfer buffer first: advance() may take one to read back ranges
+                BufferPool.get().release(buf);
+                buf = null;
+                if (pos == to + 1) {
+                    record(from, to, String.format("%032x", new BigInteger(1, md.digest())));
+                    synchronized (this.hashLock) {
+                        if (hashing)
+                            this.frontier = to + 1;
+                        else
+                            this.unhashed.put(from, to);
+                        hash_ = null; // the hashes now include this segment
+                        advance();
+                        if (hashing && this.unhashed.isEmpty()) recordHash(hashLine());
+                    }
+                    if (balancer != null)
+                        balancer.record(server_, to - from + 1, System.currentTimeMillis() - time, true);
+                    failure = false;
+                    return true;
+                }
+                throw new IOException("Short segment " + from + "-" + to + ": " + (pos - from) + " bytes");
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (GeneralSecurityException ex) {
+                System.err.println("Segment " + from + "-" + to + ": " + ex.getLocalizedMessage());
+                return false;
+            } catch (IOException ex) {
+                failure = true;
+                this.bytes.addAndGet(from - pos); // discount bytes that will be fetched again
+                if (balancer != null)
+                    balancer.record(server_, 0, System.currentTimeMillis() - time, false);
+                System.err.println("Segment " + from + "-" + to + " (" + server_ + ") attempt " + (attempt+1) + ": " + ex.getLocalizedMessage());
+            } finally {
+                if (conn != null) conn.disconnect();
+                BufferPool.get().release(buf);
+                if (this.breaker != null && (failure != null || probe_)) // an unfinished probe counts as failed
+                    this.breaker.record(server_, failure == null || failure, probe_);
+                if (hashing && hash_ != null) { // failed part-way: roll back what it hashed
+                    synchronized (this.hashLock) {
+                        this.hash = hash_;
+                        this.plainHash = plainHash_;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    // CTR cipher positioned at plaintext offset 'from' (mode ENCRYPT and DECRYPT are the same)
+    private Cipher decryptor(long from) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, this.secret, new IvParameterSpec(EgaChunkedDecrypt.counter(this.iv, from - from % 16)));
+        if (from % 16 > 0)
+            cipher.update(new byte[(int) (from % 16)]);
+        return cipher;
+    }
+
+    // MD5 of the plaintext, and of the ciphertext it came from: taken from the
+    // incremental hashes if they cover the file, else from one read of it
+    private String verifyDecrypted(File partial, String md5, String plainMd5) throws IOException {
+        try {
+            String encrypted, plain;
+            if (this.frontier == partial.length()) {
+                encrypted = this.hash.hex();
+                plain = this.plainHash.hex();
+            } else {
+                MessageDigest enc = MessageDigest.getInstance("MD5"), dec = MessageDigest.getInstance("MD5");
+                Cipher cipher = decryptor(0);
+                enc.update(this.iv);
+                ByteBuffer buf = BufferPool.get().acquire(BUFFER_SIZE);
+                try (EgaFileSink.Reader in = new EgaFileSink.Reader(partial)) {
+                    int read;
+                    long pos = 0;
+                    while ( (read = in.read(buf, pos)) > 0 ) {
+                        buf.flip();
+                        dec.update(buf.duplicate());
+                        cipher.update(buf.duplicate(), buf.duplicate()); // in place
+                        enc.update(buf);
+                        buf.clear();
+                        pos += read;
+                    }
+                } finally {
+                    BufferPool.get().release(buf);
+                }
+                encrypted = String.format("%032x", new BigInteger(1, enc.digest()));
+                plain = String.format("%032x", new BigInteger(1, dec.digest()));
+            }
+            if (!md5.equalsIgnoreCase(encrypted))
+                return "MD5 mismatch (encrypted)";
+            if (plainMd5 != null && !plainMd5.equalsIgnoreCase(plain))
+                return "MD5 mismatch (decrypted)";
+            if (plainMd5 == null) {
+                try (FileOutputStream out_ = new FileOutputStream(this.target.getPath() + ".md5")) {
+                    out_.write((plain + "  " + this.target.getName() + "\n").getBytes("UTF-8"));
+                }
+            }
+            System.out.println("Verified " + this.target.getName() + ": encrypted MD5 " + encrypted + " ok" +
+                    ", plaintext MD5 " + plain + (plainMd5==null?" (stored)":" ok"));
+            return null;
+        } catch (GeneralSecurityException ex) {
+            throw new IOException(ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        }
+    }
+
+    private HttpURLConnection open(String server, long from, long to) throws IOException {
+        return open(server, this.ticket, this.org, from, to);
+    }
+
+    public static void setReadSize(int bytes) {
+        readSize = Math.max(4096, Math.min(BufferPool.MAX_CLASS, bytes));
+    }
+
+    public static int getReadSize() {
+        return readSize;
+    }
+
+    // The response body as a channel that reads readSize bytes at a time
+    // (Channels.newChannel copies through an 8 KB array for any stream)
+    static ReadableByteChannel channel(final InputStream in) {
+        final byte[] chunk = new byte[readSize];
+        return new ReadableByteChannel() {
+            private boolean open = true;
+
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                int n = in.read(chunk, 0, Math.min(chunk.length, dst.remaining()));
+                if (n > 0) dst.put(chunk, 0, n);
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return this.open;
+            }
+
+            @Override
+            public void close() throws IOException {
+                this.open = false;
+                in.close();
+            }
+        };
+    }
+
+    // Ranged request for a ticket; to < 0: up to the end of the file
+    static HttpURLConnection open(String server, String ticket, String org, long from, long to) throws IOException {
+        // Same scheme as the API (plain http for '-local ... http')
+        String url = (TICKET_URL!=null?TICKET_URL:(EgaDemoClient.getSsl()?"https":"http") + TICKET_PATH)
+                .replace("{server}", server).replace("{ticket}", ticket);
+        if (org != null && org.length() > 0)
+            url += "?org=" + org;
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setConnectTimeout(10000);
+        conn.setReadTimeout(60000);
+        conn.setRequestProperty("Range", "bytes=" + from + "-" + (to<0?"":String.valueOf(to)));
+        return conn;
+    }
+
+    private static String md5(EgaFileSink.Reader in, long from, long to) throws IOException {
+        ByteBuffer buf = null;
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            buf = BufferPool.get().acquire(BUFFER_SIZE);
+            long pos = from;
+            while (pos <= to) {
+                buf.clear();
+                buf.limit((int)Math.min(buf.capacity(), to - pos + 1));
+                int read = in.read(buf, pos);
+                if (read <= 0) break;
+                buf.flip();
+                md.update(buf);
+                pos += read;
+            }
+            return String.format("%032x", new BigInteger(1, md.digest()));
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        } finally {
+            BufferPool.get().release(buf);
+        }
+    }
+
+    public static String md5(File file) throws IOException {
+        try (EgaFileSink.Reader in = new EgaFileSink.Reader(file)) {
+            return md5(in, 0, file.length() - 1);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egademoclient;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Random;
+
+/**
+ *
+ * @author asenf
+ *
+ * Spreads ranged downloads over all configured data servers at the same time,
+ * in proportion to their speed. When striping is started, each server's
+ * connect latency is probed and used as the initial weight; from then on
+ * every completed segment updates an (exponentially weighted) throughput
+ * figure per server, so a server that slows down automatically gets a smaller
+ * share. Each server keeps at least MIN_SHARE, so its rate keeps being measured.
+ */
+public class EgaServerBalancer {
+
+    private static final int PROBES = 3;
+    private static final double ALPHA = 0.3;      // EWMA weight of a new sample
+    private static final double MIN_SHARE = 0.05;
+    private static final double REBALANCE = 0.10; // log when a share moves by more than this
+
+    private static volatile EgaServerBalancer active = null;
+
+    private final String[] servers;
+    private final double[] latency; // ms
+    private final double[] rate;    // MB/s, EWMA; -1 until measured
+    private final double[] logged;  // shares at the last log line
+    private final Random random = new Random();
+
+    private EgaServerBalancer(String[] servers) {
+        this.servers = servers;
+        this.latency = new double[servers.length];
+        this.rate = new double[servers.length];
+        this.logged = new double[servers.length];
+        for (int i=0; i<servers.length; i++) {
+            this.rate[i] = -1;
+            this.latency[i] = probe(servers[i]);
+        }
+        double[] share = shares();
+        for (int i=0; i<servers.length; i++) {
+            this.logged[i] = share[i];
+            System.out.println(String.format("Striping: %s latency %.1f ms, initial share %.0f%%",
+                    servers[i], this.latency[i], share[i]*100));
+        }
+    }
+
+    // The balancer in use, or null if striping is off
+    public static EgaServerBalancer active() {
+        return active;
+    }
+
+    public static synchronized EgaServerBalancer start(String... servers) {
+        LinkedHashSet<String> distinct = new LinkedHashSet<>(Arrays.asList(servers));
+        active = new EgaServerBalancer(distinct.toArray(new String[distinct.size()]));
+        return active;
+    }
+
+    public static synchronized void stop() {
+        active = null;
+    }
+
+    // Average TCP connect time; unreachable servers get a very large latency
+    private static double probe(String server) {
+        String host = server;
+        int port = 443;
+        if (server.contains(":")) {
+            host = server.substring(0, server.indexOf(":"));
+            port = Integer.parseInt(server.substring(server.indexOf(":")+1));
+        }
+        double total = 0;
+        for (int i=0; i<PROBES; i++) {
+            long time = System.nanoTime();
+            try (Socket s = new Socket()) {
+                s.connect(new InetSocketAddress(host, port), 3000);
+                total += (System.nanoTime() - time) / 1000000.0;
+            } catch (IOException ex) {
+                total += 60000;
+            }
+        }
+        return total / PROBES;
+    }
+
+    public String[] servers() {
+        return this.servers;
+    }
+
+    // Fraction of segments each server should get
+    private synchronized double[] shares() {
+        double[] w = new double[this.servers.length];
+        boolean measured = true;
+        for (int i=0; i<w.length; i++)
+            measured &= this.rate[i] > 0;
+        double sum = 0;
+        for (int i=0; i<w.length; i++) {
+            w[i] = measured?this.rate[i]:(1.0 / Math.max(0.1, this.latency[i]));
+            sum += w[i];
+        }
+        for (int i=0; i<w.length; i++)
+            w[i] = Math.max(MIN_SHARE, w[i] / sum);
+        sum = 0;
+        for (double x : w) sum += x;
+        for (int i=0; i<w.length; i++)
+            w[i] /= sum;
+        return w;
+    }
+
+    // Server for the next segment
+    public String pick() {
+        double[] share = shares();
+        double r = this.random.nextDouble();
+        for (int i=0; i<share.length; i++) {
+            r -= share[i];
+            if (r < 0) return this.servers[i];
+        }
+        return this.servers[this.servers.length-1];
+    }
+
+    // A segment of 'bytes' took 'millis' on 'server'; failures count as a slow sample
+    public synchronized void record(String server, long bytes, long millis, boolean ok) {
+        for (int i=0; i<this.servers.length; i++) {
+            if (!this.servers[i].equals(server)) continue;
+            double sample = ok?(bytes / 1024.0 / 1024.0) / Math.max(0.001, millis / 1000.0):0.01;
+            this.rate[i] = this.rate[i]<0?sample:(ALPHA * sample + (1-ALPHA) * this.rate[i]);
+        }
+        double[] share = shares();
+        boolean moved = false;
+        for (int i=0; i<share.length; i++)
+            moved |= Math.abs(share[i] - this.logged[i]) > REBALANCE;
+        if (moved) {
+            StringBuilder sb = new StringBuilder("Striping: rebalanced");
+            for (int i=0; i<share.length; i++) {
+                sb.append(String.format(" %s %.0f%% (%.2f MB/s)", this.servers[i], share[i]*100, this.rate[i]));
+                this.logged[i] = share[i];
+            }
+            System.out.println(sb.toString());
+        }
+    }
+
+    public synchronized String status() {
+        double[] share = shares();
+        StringBuilder sb = new StringBuilder("Striping across " + this.servers.length + " data servers:\n");
+        for (int i=0; i<this.servers.length; i++)
+            sb.append(String.format("  %s  latency %.1f ms  rate %s  share %.0f%%%n", this.servers[i], this.latency[i],
+                    this.rate[i]<0?"n/a":String.format("%.2f MB/s", this.rate[i]), share[i]*100));
+        return sb.toString();
+    }
+}
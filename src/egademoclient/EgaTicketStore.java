@@ -0,0 +1,154 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egademoclient;
+
+import java.util.Arrays;
+import uk.ac.embl.ebi.ega.utils.EgaTicket;
+
+/**
+ *
+ * @author asenf
+ *
+ * Compact store of the tickets of one download: parallel arrays of ticket,
+ * file name and size, plus one state byte per ticket. Tickets are addressed
+ * by their index, so every state lookup and update is O(1), and a request of
+ * several hundred thousand tickets costs a few arrays rather than one object
+ * graph (and queue entry) per ticket. The EgaTicket[] returned by the API can
+ * be dropped as soon as its tickets have been added.
+ * 
+ * A store can be filled while it is being downloaded (request-and-stream
+ * mode): it stays open until close() is called, and the scheduler keeps
+ * waiting for new tickets until then.
+ */
+public class EgaTicketStore {
+
+    public static final byte PENDING = 0, ACTIVE = 1, DONE = 2, FAILED = 3;
+
+    private static final int INDEX_BITS = 24;                     // size sort: up to 16M tickets
+    private static final long MAX_SORT_SIZE = (1L << (63 - INDEX_BITS)) - 1;
+
+    private String[] ticket;
+    private String[] name;
+    private long[] size;  // bytes; Long.MAX_VALUE if unknown
+    private byte[] state;
+    private int count = 0;
+    private volatile boolean closed = true;
+
+    public EgaTicketStore() {
+        this(1024);
+    }
+
+    public EgaTicketStore(int capacity) {
+        capacity = Math.max(16, capacity);
+        this.ticket = new String[capacity];
+        this.name = new String[capacity];
+        this.size = new long[capacity];
+        this.state = new byte[capacity];
+    }
+
+    // Returns the index of the new ticket, or -1 if it can't be downloaded
+    public synchronized int add(EgaTicket t) {
+        return add(t.getTicket(), t.getFileName(), t.getFileSize());
+    }
+
+    public synchronized int add(String ticket, String name, String size) {
+        if (ticket == null || name == null) {
+            System.out.println("Download Ticket ERROR");
+            return -1;
+        }
+        if (this.count == this.ticket.length) {
+            int capacity = this.count + (this.count >> 1);
+            this.ticket = Arrays.copyOf(this.ticket, capacity);
+            this.name = Arrays.copyOf(this.name, capacity);
+            this.size = Arrays.copyOf(this.size, capacity);
+            this.state = Arrays.copyOf(this.state, capacity);
+        }
+        long size_;
+        try {
+            size_ = Long.parseLong(size);
+        } catch (NumberFormatException | NullPointerException ex) {
+            size_ = Long.MAX_VALUE; // Unknown size: treat as large
+        }
+        this.ticket[this.count] = ticket;
+        this.name[this.count] = name;
+        this.size[this.count] = size_;
+        this.state[this.count] = PENDING;
+        return this.count++;
+    }
+
+    // Open stores are still being filled by another thread
+    public static EgaTicketStore open() {
+        EgaTicketStore store = new EgaTicketStore();
+        store.closed = false;
+        return store;
+    }
+
+    // No more tickets will be added
+    public void close() {
+        this.closed = true;
+    }
+
+    public boolean isClosed() {
+        return this.closed;
+    }
+
+    public synchronized int size() {
+        return this.count;
+    }
+
+    public synchronized String getTicket(int i) {
+        return this.ticket[i];
+    }
+
+    public synchronized String getFileName(int i) {
+        return this.name[i];
+    }
+
+    public synchronized long getFileSize(int i) {
+        return this.size[i];
+    }
+
+    public synchronized byte getState(int i) {
+        return this.state[i];
+    }
+
+    public synchronized void setState(int i, byte state) {
+        this.state[i] = state;
+    }
+
+    public synchronized int count(byte state) {
+        int n = 0;
+        for (int i=0; i<this.count; i++)
+            if (this.state[i] == state) n++;
+        return n;
+    }
+
+    // Ticket indices, largest file first. Sorts packed (size, index) longs, so
+    // no boxed Integer or comparator object is created per ticket
+    public synchronized int[] bySizeDescending() {
+        if (this.count >= (1 << INDEX_BITS))
+            throw new IllegalStateException("Too many tickets to order by size: " + this.count);
+        long[] keys = new long[this.count];
+        for (int i=0; i<this.count; i++)
+            keys[i] = (Math.min(this.size[i], MAX_SORT_SIZE) << INDEX_BITS) | i;
+        Arrays.sort(keys);
+        int[] order = new int[this.count];
+        int mask = (1 << INDEX_BITS) - 1;
+        for (int i=0; i<this.count; i++)
+            order[i] = (int) (keys[this.count - 1 - i] & mask);
+        return order;
+    }
+}
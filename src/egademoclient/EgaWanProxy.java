@@ -0,0 +1,449 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package egademoclient;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.StringTokenizer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import utils.BandwidthLimiter;
+
+/**
+ *
+ * @author asenf
+ *
+ * TCP proxy that makes a loopback connection behave like a WAN link, in
+ * userspace (no root, tc or netem): it listens on a local port and forwards
+ * every connection to a target host:port, delaying and shaping the data on
+ * the way. Conditions are a comma separated list:
+ *
+ *   rtt=ms          round trip time; each direction is delayed by rtt/2
+ *   jitter=ms       random extra delay of 0..ms per chunk (order is kept, as in TCP)
+ *   bandwidth=MB/s  link capacity per direction, shared by all connections
+ *   stream=MB/s     cap per connection and direction
+ *   loss=%          packet loss; a proxy can't drop packets inside a TCP
+ *                   stream, so each lost 1460 byte packet stalls its
+ *                   connection for one retransmission timeout instead
+ *   stall=ms        length of those stalls (default 200 ms + rtt)
+ *   reset=%         chance per MB transferred that a connection is reset (RST)
+ *
+ * e.g. "rtt=150,jitter=10,bandwidth=50,loss=0.1". Conditions can be changed
+ * while connections are open, and a script of timed phases
+ * ("{seconds}:{conditions};...") sweeps through several of them. UDT runs
+ * over UDP and is not carried by this proxy.
+ */
+public class EgaWanProxy implements Closeable {
+
+    private static final int CHUNK = 16 * 1024;
+    private static final int PACKET = 1460; // bytes per TCP segment, for loss
+    private static final int QUEUE = 256; // chunks in flight per direction (~4 MB)
+
+    private final ServerSocket listener;
+    private final String targetHost;
+    private final int targetPort;
+    private final ExecutorService executor;
+    private final Random rnd = new Random();
+
+    // Conditions
+    private volatile int rtt = 0, jitter = 0, stall = -1; // ms; stall -1: 200 + rtt
+    private volatile double loss = 0, reset = 0; // %
+    private volatile long streamRate = 0; // bytes/s
+    private final BandwidthLimiter up = new BandwidthLimiter(), down = new BandwidthLimiter();
+    private volatile String conditions = "none";
+
+    private Thread script = null;
+    private volatile boolean closed = false;
+    private final ArrayList<Socket> open = new ArrayList<>();
+
+    private final AtomicInteger connections = new AtomicInteger(0), resets = new AtomicInteger(0), stalls = new AtomicInteger(0);
+    private final AtomicLong bytesUp = new AtomicLong(0), bytesDown = new AtomicLong(0);
+
+    public EgaWanProxy(int port, String target) throws IOException {
+        int colon = target.lastIndexOf(':');
+        if (colon < 0)
+            throw new IllegalArgumentException("Target must be host:port - " + target);
+        this.targetHost = target.substring(0, colon);
+        this.targetPort = Integer.parseInt(target.substring(colon + 1));
+        this.listener = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+        this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "EgaWanProxy");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        });
+    }
+
+    public int getPort() {
+        return this.listener.getLocalPort();
+    }
+
+    // "rtt=150,jitter=10,..."; "none" or "" clears all conditions
+    public synchronized void setConditions(String spec) {
+        int rtt_ = 0, jitter_ = 0, stall_ = -1;
+        double loss_ = 0, reset_ = 0;
+        long bandwidth_ = 0, stream_ = 0;
+        StringTokenizer token = new StringTokenizer(spec.trim().equalsIgnoreCase("none")?"":spec, ",");
+        while (token.hasMoreTokens()) {
+            String entry = token.nextToken().trim();
+            int eq = entry.indexOf('=');
+            if (eq < 0)
+                throw new IllegalArgumentException("Invalid condition: " + entry);
+            String name = entry.substring(0, eq).trim().toLowerCase();
+            double value = Double.parseDouble(entry.substring(eq + 1).trim());
+            if (value < 0)
+                throw new IllegalArgumentException("Negative condition: " + entry);
+            switch (name) {
+                case "rtt": rtt_ = (int) value; break;
+                case "jitter": jitter_ = (int) value; break;
+                case "bandwidth": bandwidth_ = (long) (value * 1024 * 1024); break;
+                case "stream": stream_ = (long) (value * 1024 * 1024); break;
+                case "loss": loss_ = Math.min(100, value); break;
+                case "stall": stall_ = (int) value; break;
+                case "reset": reset_ = Math.min(100, value); break;
+                default: throw new IllegalArgumentException("Unknown condition: " + name);
+            }
+        }
+        this.rtt = rtt_;
+        this.jitter = jitter_;
+        this.stall = stall_;
+        this.loss = loss_;
+        this.reset = reset_;
+        this.streamRate = stream_;
+        this.up.setRate(bandwidth_);
+        this.down.setRate(bandwidth_);
+        this.conditions = spec.trim().length()==0?"none":spec.trim();
+    }
+
+    public String getConditions() {
+        return this.conditions;
+    }
+
+    // Phases "{seconds}:{conditions};..." (or one per line), applied in turn; repeats if 'loop'
+    public synchronized void runScript(String phases, final boolean loop) {
+        stopScript();
+        final ArrayList<String[]> steps = new ArrayList<>();
+        for (String step : phases.split("[;\\n]")) {
+            step = step.trim();
+            if (step.length() == 0 || step.startsWith("#")) continue;
+            int colon = step.indexOf(':');
+            if (colon < 0)
+                throw new IllegalArgumentException("Invalid phase (seconds:conditions): " + step);
+            Double.parseDouble(step.substring(0, colon).trim()); // validate now, not halfway through
+            steps.add(new String[]{step.substring(0, colon).trim(), step.substring(colon + 1).trim()});
+        }
+        if (steps.isEmpty()) return;
+        this.script = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    do {
+                        for (String[] step : steps) {
+                            setConditions(step[1]);
+                            System.out.println("WAN proxy: " + step[1] + " for " + step[0] + " s");
+                            Thread.sleep((long) (Double.parseDouble(step[0]) * 1000));
+                        }
+                    } while (loop);
+                } catch (InterruptedException ex) {
+                    // stopped
+                }
+            }
+        }, "EgaWanProxy-script");
+        this.script.setDaemon(true);
+        this.script.start();
+    }
+
+    public synchronized void stopScript() {
+        if (this.script != null) {
+            this.script.interrupt();
+            this.script = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        this.closed = true;
+        stopScript();
+        try {
+            this.listener.close();
+        } catch (IOException ex) {
+        }
+        synchronized (this.open) {
+            for (Socket s : this.open)
+                quietClose(s);
+            this.open.clear();
+        }
+        this.executor.shutdownNow();
+    }
+
+    public String status() {
+        return String.format("WAN proxy localhost:%d -> %s:%d [%s]: %d connection(s), %.1f MB up, %.1f MB down, %d stall(s), %d reset(s).",
+                getPort(), this.targetHost, this.targetPort, this.conditions, this.connections.get(),
+                this.bytesUp.get() / 1024.0 / 1024.0, this.bytesDown.get() / 1024.0 / 1024.0, this.stalls.get(), this.resets.get());
+    }
+
+    // -------------------------------------------------------------------------
+
+    private void accept() {
+        while (!this.closed) {
+            try {
+                final Socket client = this.listener.accept();
+                this.connections.incrementAndGet();
+                this.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        connect(client);
+                    }
+                });
+            } catch (IOException ex) {
+                if (!this.closed)
+                    System.err.println("WAN proxy: " + ex.getLocalizedMessage());
+            }
+        }
+    }
+
+    private void connect(Socket client) {
+        Socket server = new Socket();
+        try {
+            Thread.sleep(this.rtt); // the SYN / SYN-ACK round trip
+            server.connect(new InetSocketAddress(this.targetHost, this.targetPort), 10000);
+            client.setTcpNoDelay(true);
+            server.setTcpNoDelay(true);
+        } catch (IOException | InterruptedException ex) {
+            quietClose(client);
+            quietClose(server);
+            return;
+        }
+        synchronized (this.open) {
+            this.open.add(client);
+            this.open.add(server);
+        }
+        Pipe[] pipes = {new Pipe(client, server, this.up, this.bytesUp), new Pipe(server, client, this.down, this.bytesDown)};
+        pipes[0].other = pipes[1];
+        pipes[1].other = pipes[0];
+        for (Pipe p : pipes) {
+            p.start();
+        }
+    }
+
+    // One direction of a connection: a reader stamps chunks with the time they
+    // may leave, a writer sends them then (after loss stalls and bandwidth)
+    private final class Pipe {
+        private final Socket from, to;
+        private final BandwidthLimiter link;
+        private final AtomicLong counter;
+        private final BandwidthLimiter stream = new BandwidthLimiter();
+        private final BlockingQueue<Object[]> queue = new ArrayBlockingQueue<>(QUEUE); // {byte[] (null: EOF), release ns}
+        private Pipe other;
+        private volatile boolean done = false, aborted = false;
+
+        Pipe(Socket from, Socket to, BandwidthLimiter link, AtomicLong counter) {
+            this.from = from;
+            this.to = to;
+            this.link = link;
+            this.counter = counter;
+        }
+
+        void start() {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    read();
+                }
+            });
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    write();
+                }
+            });
+        }
+
+        private void read() {
+            long last = 0;
+            try {
+                InputStream in = this.from.getInputStream(); // closing it would close the socket
+                byte[] buf = new byte[CHUNK];
+                int n;
+                while (true) {
+                    n = in.read(buf);
+                    long release = System.nanoTime() + rtt * 500000L; // rtt/2
+                    int jitter_ = jitter;
+                    if (jitter_ > 0) {
+                        synchronized (rnd) {
+                            release += rnd.nextInt(jitter_ + 1) * 1000000L;
+                        }
+                    }
+                    last = Math.max(last, release); // no reordering within a stream
+                    Object[] chunk = {n<0?null:Arrays.copyOf(buf, n), last};
+                    while (!this.queue.offer(chunk, 100, TimeUnit.MILLISECONDS))
+                        if (this.aborted) return;
+                    if (n < 0) break;
+                }
+            } catch (IOException | InterruptedException ex) { // connection broken (or proxy closing): abort both sides
+                reset();
+            }
+        }
+
+        private void write() {
+            try {
+                OutputStream out = this.to.getOutputStream();
+                while (true) {
+                    Object[] chunk = this.queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (chunk == null) {
+                        if (this.aborted) return;
+                        continue;
+                    }
+                    byte[] data = (byte[]) chunk[0];
+                    long wait = (Long) chunk[1] - System.nanoTime();
+                    if (wait > 0)
+                        Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+                    if (data == null) {
+                        if (!this.to.isClosed()) this.to.shutdownOutput();
+                        break;
+                    }
+                    lossStall(data.length);
+                    this.link.acquire(data.length);
+                    this.stream.setRate(streamRate);
+                    this.stream.acquire(data.length);
+                    if (resetNow(data.length)) {
+                        resets.incrementAndGet();
+                        reset();
+                        return;
+                    }
+                    out.write(data);
+                    this.counter.addAndGet(data.length);
+                }
+            } catch (IOException | InterruptedException ex) {
+                reset();
+                return;
+            }
+            this.done = true;
+            if (this.other.done)
+                closeBoth();
+        }
+
+        private void lossStall(int bytes) throws InterruptedException {
+            double loss_ = loss;
+            if (loss_ <= 0) return;
+            double p = 1 - Math.pow(1 - loss_ / 100.0, Math.ceil(bytes / (double) PACKET));
+            boolean lost;
+            synchronized (rnd) {
+                lost = rnd.nextDouble() < p;
+            }
+            if (lost) {
+                stalls.incrementAndGet();
+                Thread.sleep(stall>=0?stall:200 + rtt);
+            }
+        }
+
+        private boolean resetNow(int bytes) {
+            double reset_ = reset;
+            if (reset_ <= 0) return false;
+            synchronized (rnd) {
+                return rnd.nextDouble() < reset_ / 100.0 * bytes / (1024.0 * 1024.0);
+            }
+        }
+
+        // Abort with RST on both sides
+        private void reset() {
+            try {
+                this.from.setSoLinger(true, 0);
+                this.to.setSoLinger(true, 0);
+            } catch (IOException ex) {
+            }
+            closeBoth();
+        }
+
+        private void closeBoth() {
+            this.aborted = true;
+            this.other.aborted = true;
+            quietClose(this.from);
+            quietClose(this.to);
+            synchronized (open) {
+                open.remove(this.from);
+                open.remove(this.to);
+            }
+        }
+    }
+
+    private static void quietClose(Socket s) {
+        try {
+            s.close();
+        } catch (IOException ex) {
+        }
+    }
+
+    // -------------------------------------------------------------------------
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            System.out.println("Usage: EgaWanProxy {local port} {target host:port} [conditions] [-script {file or phases}] [-loop]");
+            System.out.println("    conditions: rtt=ms,jitter=ms,bandwidth=MB/s,stream=MB/s,loss=%,stall=ms,reset=%");
+            System.out.println("    phases: {seconds}:{conditions};... e.g. \"60:rtt=20;60:rtt=150,loss=0.1\"");
+            return;
+        }
+        final EgaWanProxy proxy = new EgaWanProxy(Integer.parseInt(args[0]), args[1]);
+        String script = null;
+        boolean loop = false;
+        for (int i=2; i<args.length; i++) {
+            if (args[i].equalsIgnoreCase("-script") && i+1 < args.length) {
+                script = args[++i];
+                if (Files.isRegularFile(Paths.get(script)))
+                    script = new String(Files.readAllBytes(Paths.get(script)), StandardCharsets.UTF_8);
+            } else if (args[i].equalsIgnoreCase("-loop"))
+                loop = true;
+            else
+                proxy.setConditions(args[i]);
+        }
+        if (script != null)
+            proxy.runScript(script, loop);
+        System.out.println("WAN proxy listening on localhost:" + proxy.getPort() + " -> " + args[1] + " [" + proxy.getConditions() + "]");
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                System.out.println(proxy.status());
+            }
+        });
+        Thread.sleep(Long.MAX_VALUE);
+    }
+}
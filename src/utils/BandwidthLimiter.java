@@ -0,0 +1,198 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.StringTokenizer;
+
+/**
+ *
+ * @author asenf
+ *
+ * Token bucket shared by all download streams. The rate (bytes/s) can be
+ * changed at any time, and a schedule can set different rates for different
+ * times of day, e.g. "22:00-07:00=200,07:00-22:00=50" (MB/s). Without a
+ * matching schedule entry the plain rate applies; a rate of 0 means unlimited.
+ *
+ * Only transfers that read the stream themselves draw from the bucket (ranged
+ * downloads, download to null); API downloads can't be throttled, so while a
+ * limit is active every download goes through the ranged path if it can.
+ *
+ * In host-wide mode the bucket lives in a small memory-mapped file instead of
+ * in this JVM, and every update happens under a file lock, so all client
+ * processes on the machine draw from the same bucket.
+ */
+public class BandwidthLimiter {
+
+    public static final String HOST_FILE = System.getProperty("java.io.tmpdir") + File.separator + "ega-bandwidth.mmap";
+    private static final long MAX_SLEEP = 100; // ms
+
+    private static final BandwidthLimiter global = new BandwidthLimiter();
+
+    private volatile long rate = 0; // bytes/s; 0 = unlimited
+    private volatile ArrayList<long[]> schedule = new ArrayList<>(); // {from minute, to minute, bytes/s}
+
+    // Local bucket
+    private double tokens = 0;
+    private long last = System.currentTimeMillis();
+
+    // Host-wide bucket: [0] tokens, [8] last refill ms
+    private FileChannel hostChannel = null;
+    private MappedByteBuffer hostBuffer = null;
+
+    public static BandwidthLimiter get() {
+        return global;
+    }
+
+    public void setRate(long bytesPerSecond) {
+        this.rate = Math.max(0, bytesPerSecond);
+    }
+
+    public long getRate() {
+        return this.rate;
+    }
+
+    // Is a rate or a schedule set (even if it allows everything right now)?
+    public boolean isActive() {
+        return this.rate > 0 || !this.schedule.isEmpty();
+    }
+
+    // "hh:mm-hh:mm=MB/s,..." - an empty string clears the schedule
+    public void setSchedule(String spec) {
+        ArrayList<long[]> schedule_ = new ArrayList<>();
+        StringTokenizer token = new StringTokenizer(spec, ",");
+        while (token.hasMoreTokens()) {
+            String entry = token.nextToken().trim();
+            int dash = entry.indexOf('-'), eq = entry.indexOf('=');
+            if (dash < 0 || eq < dash)
+                throw new IllegalArgumentException("Invalid schedule entry: " + entry);
+            long from = minutes(entry.substring(0, dash)), to = minutes(entry.substring(dash+1, eq));
+            long mbps = Long.parseLong(entry.substring(eq+1).trim());
+            schedule_.add(new long[]{from, to, mbps * 1024L * 1024L});
+        }
+        this.schedule = schedule_;
+    }
+
+    private static long minutes(String hhmm) {
+        String[] parts = hhmm.trim().split(":");
+        return Integer.parseInt(parts[0]) * 60 + (parts.length>1?Integer.parseInt(parts[1]):0);
+    }
+
+    // Rate in effect right now: the matching schedule entry, otherwise the plain rate
+    public long currentRate() {
+        ArrayList<long[]> schedule_ = this.schedule;
+        if (!schedule_.isEmpty()) {
+            Calendar now = Calendar.getInstance();
+            long minute = now.get(Calendar.HOUR_OF_DAY) * 60 + now.get(Calendar.MINUTE);
+            for (long[] entry : schedule_) {
+                boolean match = entry[0] <= entry[1]?(minute >= entry[0] && minute < entry[1]):
+                                                     (minute >= entry[0] || minute < entry[1]); // wraps midnight
+                if (match) return entry[2];
+            }
+        }
+        return this.rate;
+    }
+
+    public synchronized void setHostWide(boolean on) throws IOException {
+        if (on && this.hostChannel == null) {
+            RandomAccessFile raf = new RandomAccessFile(HOST_FILE, "rw");
+            this.hostChannel = raf.getChannel();
+            this.hostBuffer = this.hostChannel.map(FileChannel.MapMode.READ_WRITE, 0, 16);
+        } else if (!on && this.hostChannel != null) {
+            this.hostChannel.close();
+            this.hostChannel = null;
+            this.hostBuffer = null;
+        }
+    }
+
+    public boolean isHostWide() {
+        return this.hostChannel != null;
+    }
+
+    // Block until 'bytes' tokens are available
+    public void acquire(long bytes) throws InterruptedException {
+        while (true) {
+            long rate_ = currentRate();
+            if (rate_ <= 0)
+                return;
+            long wait;
+            try {
+                wait = take(bytes, rate_);
+            } catch (IOException ex) { // host file unusable - continue with the local bucket
+                System.err.println("Host-wide bandwidth limit disabled: " + ex.getLocalizedMessage());
+                try { setHostWide(false); } catch (IOException ignored) {}
+                continue;
+            }
+            if (wait <= 0)
+                return;
+            Thread.sleep(Math.min(wait, MAX_SLEEP));
+        }
+    }
+
+    // Refill, then take the tokens if there are enough; otherwise return ms to wait.
+    // The bucket holds at most one second worth of tokens; a request larger than
+    // that is allowed to drive it negative, so large reads still make progress.
+    private synchronized long take(long bytes, long rate_) throws IOException {
+        long now = System.currentTimeMillis();
+        if (this.hostChannel == null) {
+            this.tokens = Math.min(rate_, this.tokens + (now - this.last) * rate_ / 1000.0);
+            this.last = now;
+            if (this.tokens <= 0)
+                return (long) Math.ceil(-this.tokens * 1000.0 / rate_) + 1;
+            this.tokens -= bytes;
+            return 0;
+        }
+
+        FileLock lock = this.hostChannel.lock(0, 16, false);
+        try {
+            double tokens_ = this.hostBuffer.getDouble(0);
+            long last_ = this.hostBuffer.getLong(8);
+            if (last_ <= 0 || last_ > now) last_ = now;
+            tokens_ = Math.min(rate_, tokens_ + (now - last_) * rate_ / 1000.0);
+            long wait = 0;
+            if (tokens_ <= 0)
+                wait = (long) Math.ceil(-tokens_ * 1000.0 / rate_) + 1;
+            else
+                tokens_ -= bytes;
+            this.hostBuffer.putDouble(0, tokens_);
+            this.hostBuffer.putLong(8, now);
+            return wait;
+        } finally {
+            lock.release();
+        }
+    }
+
+    public String status() {
+        StringBuilder sb = new StringBuilder();
+        long rate_ = currentRate();
+        sb.append("Bandwidth limit: ").append(rate_<=0?"none":(rate_/1024/1024 + " MB/s"));
+        if (!this.schedule.isEmpty()) {
+            sb.append(" (schedule:");
+            for (long[] entry : this.schedule)
+                sb.append(String.format(" %02d:%02d-%02d:%02d=%d", entry[0]/60, entry[0]%60, entry[1]/60, entry[1]%60, entry[2]/1024/1024));
+            sb.append(" MB/s; otherwise ").append(this.rate<=0?"none":(this.rate/1024/1024 + " MB/s")).append(")");
+        }
+        sb.append(isHostWide()?", shared by all clients on this host (" + HOST_FILE + ")":", this client only");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ *
+ * @author asenf
+ *
+ * Pool of direct buffers shared by all transfers: network reads, file writes
+ * and cipher operations reuse the same off-heap memory instead of allocating
+ * fresh heap arrays per download (which shows up as young-generation GC
+ * pauses with many streams). Buffers come in power-of-two size classes from
+ * MIN_CLASS to MAX_CLASS, and are aligned to ALIGN bytes where the JVM allows
+ * (Java 9+), so they can be used for direct I/O as they are.
+ *
+ * All buffers together - in use or kept for reuse - never exceed the budget:
+ * acquire() first drops unused buffers of other sizes, then waits for a
+ * release. Every caller holds at most one buffer at a time - a caller must
+ * release its buffer before anything that may acquire another (or wait for a
+ * lock whose holder may) - so waiting can't deadlock. (A single buffer larger
+ * than the budget is allowed when nothing else is in use.)
+ */
+public class BufferPool {
+
+    public static final int MIN_CLASS = 64 * 1024;
+    public static final int MAX_CLASS = 16 * 1024 * 1024;
+    public static final int ALIGN = 4096;
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_CLASS / MIN_CLASS) + 1;
+
+    private static final BufferPool global = new BufferPool(256L * 1024L * 1024L);
+
+    private long budget;
+    private long allocated = 0, inUse = 0, peak = 0; // bytes
+    private long hits = 0, misses = 0, waits = 0;
+    private final ArrayDeque<ByteBuffer>[] free;
+
+    @SuppressWarnings("unchecked")
+    public BufferPool(long budget) {
+        this.budget = budget;
+        this.free = (ArrayDeque<ByteBuffer>[]) new ArrayDeque<?>[CLASSES];
+        for (int i=0; i<CLASSES; i++)
+            this.free[i] = new ArrayDeque<>();
+    }
+
+    public static BufferPool get() {
+        return global;
+    }
+
+    public synchronized void setBudget(long bytes) {
+        this.budget = Math.max(MIN_CLASS, bytes);
+        trim(0);
+        notifyAll();
+    }
+
+    public synchronized long getBudget() {
+        return this.budget;
+    }
+
+    // A cleared buffer with room for 'size' bytes (limit = size); blocks while the budget is used up
+    public ByteBuffer acquire(int size) throws InterruptedException {
+        int c = sizeClass(size);
+        int capacity = MIN_CLASS << c;
+        boolean waited = false;
+        synchronized (this) {
+            while (true) {
+                ByteBuffer buf = this.free[c].poll();
+                if (buf != null) {
+                    this.hits++;
+                    this.inUse += capacity;
+                    buf.clear();
+                    buf.limit(size);
+                    return buf;
+                }
+                trim(capacity); // unused buffers of other sizes make room
+                if (this.allocated + capacity <= this.budget || this.inUse == 0)
+                    break;
+                if (!waited) this.waits++;
+                waited = true;
+                wait();
+            }
+            this.misses++;
+            this.allocated += capacity;
+            this.inUse += capacity;
+            this.peak = Math.max(this.peak, this.allocated);
+        }
+        ByteBuffer buf = allocate(capacity);
+        buf.limit(size);
+        return buf;
+    }
+
+    public void release(ByteBuffer buf) {
+        if (buf == null) return;
+        int capacity = buf.capacity();
+        if (capacity < MIN_CLASS || capacity > MAX_CLASS || Integer.bitCount(capacity) != 1)
+            return; // not one of ours
+        synchronized (this) {
+            this.inUse -= capacity;
+            if (this.allocated > this.budget) // budget was lowered: let it go
+                this.allocated -= capacity;
+            else
+                this.free[sizeClass(capacity)].push(buf);
+            notifyAll();
+        }
+    }
+
+    // Drop unused buffers until 'needed' more bytes fit the budget
+    private void trim(int needed) {
+        for (int i=CLASSES-1; i>=0 && this.allocated + needed > this.budget; i--) {
+            while (this.allocated + needed > this.budget && this.free[i].poll() != null)
+                this.allocated -= MIN_CLASS << i;
+        }
+    }
+
+    private static int sizeClass(int size) {
+        if (size > MAX_CLASS)
+            throw new IllegalArgumentException("Buffer of " + size + " bytes exceeds the largest size class (" + MAX_CLASS + ")");
+        int c = 0;
+        while ((MIN_CLASS << c) < size) c++;
+        return c;
+    }
+
+    // Direct buffer of exactly 'capacity' bytes, starting on an ALIGN boundary if possible
+    private static ByteBuffer allocate(int capacity) {
+        try { // ByteBuffer.alignedSlice: Java 9+
+            ByteBuffer buf = (ByteBuffer) ByteBuffer.class.getMethod("alignedSlice", int.class)
+                    .invoke(ByteBuffer.allocateDirect(capacity + ALIGN), ALIGN);
+            buf.limit(capacity);
+            return buf.slice();
+        } catch (ReflectiveOperationException ex) {
+            return ByteBuffer.allocateDirect(capacity);
+        }
+    }
+
+    public synchronized String status() {
+        long requests = this.hits + this.misses;
+        return String.format("Buffer pool: budget %d MB, %.1f MB allocated (peak %.1f MB), %.1f MB in use; %d hits, %d misses (%.1f%% hit rate), %d waits for budget.",
+                this.budget / 1024 / 1024, this.allocated / 1024.0 / 1024.0, this.peak / 1024.0 / 1024.0, this.inUse / 1024.0 / 1024.0,
+                this.hits, this.misses, requests==0?0.0:100.0 * this.hits / requests, this.waits);
+    }
+}
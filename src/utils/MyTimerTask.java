@@ -32,17 +32,27 @@ import java.util.concurrent.Future;
 public class MyTimerTask extends TimerTask {
     
     private static Future[] f;
+    private Progress progress;
     
     public MyTimerTask(Future[] f) {
         MyTimerTask.f = f;
     }
     
+    public MyTimerTask(Progress progress) {
+        this.progress = progress;
+    }
+    
     public void setF(Future[] f) {
         MyTimerTask.f = f;
     }
     
     @Override
     public void run() {
+        if (this.progress != null) {
+            System.out.println(this.progress.progress() + "\n");
+            return;
+        }
+        
         StringBuilder sb = new StringBuilder();
 
         int j = 0;
@@ -59,4 +69,8 @@ public class MyTimerTask extends TimerTask {
         System.out.println(sb.toString());
     }
     
+    // Anything that can report its own progress line
+    public interface Progress {
+        public String progress();
+    }
 }
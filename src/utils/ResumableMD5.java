@@ -0,0 +1,160 @@
+/*
+ * Copyright 2016 EMBL-EBI.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ *
+ * @author asenf
+ *
+ * MD5 (RFC 1321) whose intermediate state can be saved as a short string and
+ * restored later - java.security.MessageDigest can't do that. Used to hash
+ * downloads as they are written, and to carry on hashing after a resume
+ * without reading the part of the file that was already hashed.
+ */
+public class ResumableMD5 {
+
+    private static final int[] S = {7, 12, 17, 22, 5, 9, 14, 20, 4, 11, 16, 23, 6, 10, 15, 21};
+    private static final int[] T = new int[64];
+    static {
+        for (int i=0; i<64; i++)
+            T[i] = (int) (long) (Math.abs(Math.sin(i + 1)) * 4294967296.0);
+    }
+
+    private int a = 0x67452301, b = 0xefcdab89, c = 0x98badcfe, d = 0x10325476;
+    private long count = 0; // bytes hashed
+    private final byte[] buffer = new byte[64];
+    private final int[] x = new int[16];
+    private byte[] scratch = null;
+
+    public long getCount() {
+        return this.count;
+    }
+
+    public void update(byte[] in, int off, int len) {
+        int have = (int) (this.count & 63);
+        this.count += len;
+        if (have > 0) {
+            int need = 64 - have;
+            if (len < need) {
+                System.arraycopy(in, off, this.buffer, have, len);
+                return;
+            }
+            System.arraycopy(in, off, this.buffer, have, need);
+            transform(this.buffer, 0);
+            off += need;
+            len -= need;
+        }
+        while (len >= 64) {
+            transform(in, off);
+            off += 64;
+            len -= 64;
+        }
+        if (len > 0)
+            System.arraycopy(in, off, this.buffer, 0, len);
+    }
+
+    // Hashes the remaining bytes of 'in' (position moves to the limit)
+    public void update(ByteBuffer in) {
+        if (in.hasArray()) {
+            update(in.array(), in.arrayOffset() + in.position(), in.remaining());
+            in.position(in.limit());
+            return;
+        }
+        if (this.scratch == null) this.scratch = new byte[64 * 1024];
+        while (in.hasRemaining()) {
+            int n = Math.min(this.scratch.length, in.remaining());
+            in.get(this.scratch, 0, n);
+            update(this.scratch, 0, n);
+        }
+    }
+
+    public ResumableMD5 copy() {
+        ResumableMD5 copy = new ResumableMD5();
+        copy.a = this.a; copy.b = this.b; copy.c = this.c; copy.d = this.d;
+        copy.count = this.count;
+        System.arraycopy(this.buffer, 0, copy.buffer, 0, 64);
+        return copy;
+    }
+
+    // Digest of everything so far; this object can keep hashing afterwards
+    public byte[] digest() {
+        ResumableMD5 f = copy();
+        long bits = f.count * 8;
+        byte[] pad = new byte[(int) (((55 - f.count) & 63) + 1)];
+        pad[0] = (byte) 0x80;
+        f.update(pad, 0, pad.length);
+        byte[] len = new byte[8];
+        for (int i=0; i<8; i++) len[i] = (byte) (bits >>> (8*i));
+        f.update(len, 0, 8);
+        byte[] out = new byte[16];
+        int[] v = {f.a, f.b, f.c, f.d};
+        for (int i=0; i<16; i++) out[i] = (byte) (v[i/4] >>> (8*(i%4)));
+        return out;
+    }
+
+    public String hex() {
+        StringBuilder sb = new StringBuilder();
+        for (byte one : digest()) sb.append(String.format("%02x", one & 0xff));
+        return sb.toString();
+    }
+
+    // "{count}:{a}{b}{c}{d}:{buffered bytes}" in hex
+    public String state() {
+        StringBuilder sb = new StringBuilder().append(this.count).append(':');
+        sb.append(String.format("%08x%08x%08x%08x", this.a, this.b, this.c, this.d)).append(':');
+        for (int i=0; i<(int)(this.count & 63); i++) sb.append(String.format("%02x", this.buffer[i] & 0xff));
+        return sb.toString();
+    }
+
+    public static ResumableMD5 fromState(String state) {
+        String[] f = state.split(":", -1);
+        if (f.length != 3 || f[1].length() != 32)
+            throw new IllegalArgumentException("Invalid MD5 state: " + state);
+        ResumableMD5 md = new ResumableMD5();
+        md.count = Long.parseLong(f[0]);
+        md.a = (int) Long.parseLong(f[1].substring(0, 8), 16);
+        md.b = (int) Long.parseLong(f[1].substring(8, 16), 16);
+        md.c = (int) Long.parseLong(f[1].substring(16, 24), 16);
+        md.d = (int) Long.parseLong(f[1].substring(24, 32), 16);
+        if (f[2].length() != 2 * (int)(md.count & 63))
+            throw new IllegalArgumentException("Invalid MD5 state: " + state);
+        for (int i=0; i<f[2].length()/2; i++)
+            md.buffer[i] = (byte) Integer.parseInt(f[2].substring(2*i, 2*i+2), 16);
+        return md;
+    }
+
+    private void transform(byte[] block, int off) {
+        for (int i=0; i<16; i++)
+            this.x[i] = (block[off+4*i] & 0xff) | ((block[off+4*i+1] & 0xff) << 8) |
+                        ((block[off+4*i+2] & 0xff) << 16) | ((block[off+4*i+3] & 0xff) << 24);
+        int aa = this.a, bb = this.b, cc = this.c, dd = this.d;
+        for (int i=0; i<64; i++) {
+            int f, g;
+            if (i < 16)      { f = (bb & cc) | (~bb & dd); g = i; }
+            else if (i < 32) { f = (dd & bb) | (~dd & cc); g = (5*i + 1) & 15; }
+            else if (i < 48) { f = bb ^ cc ^ dd;           g = (3*i + 5) & 15; }
+            else             { f = cc ^ (bb | ~dd);        g = (7*i) & 15; }
+            int tmp = dd;
+            dd = cc;
+            cc = bb;
+            bb = bb + Integer.rotateLeft(aa + f + T[i] + this.x[g], S[(i/16)*4 + (i&3)]);
+            aa = tmp;
+        }
+        this.a += aa; this.b += bb; this.c += cc; this.d += dd;
+    }
+}